@@ -3,9 +3,46 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Crypto {
 
+    /** number of initialised verifiers each thread keeps for its most recently used keys */
+    public static final int VERIFIERS_PER_THREAD = 256;
+
+    /**
+     * Each thread keeps its own {@code Signature} objects, already initialised for verification
+     * with the keys it has seen most recently. {@code verify} resets a {@code Signature} to its
+     * freshly initialised state, so it can be reused for the same key without calling
+     * {@code initVerify} again.
+     */
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> verifiers =
+            new ThreadLocal<LinkedHashMap<PublicKey, Signature>>() {
+                protected LinkedHashMap<PublicKey, Signature> initialValue() {
+                    return new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                        protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> eldest) {
+                            return size() > VERIFIERS_PER_THREAD;
+                        }
+                    };
+                }
+            };
+
+    /** a message, the signature claimed for it and the key it should verify under */
+    public static class SignedMessage {
+        public PublicKey pubKey;
+        public byte[] message;
+        public byte[] signature;
+
+        public SignedMessage(PublicKey pubKey, byte[] message, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +50,60 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
+        Signature sig = getVerifier(pubKey);
+        if (sig == null)
+            return false;
+        boolean reusable = false;
         try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
+            sig.update(message);
+            boolean valid = sig.verify(signature);
+            reusable = true;
+            return valid;
+        } catch (SignatureException e) {
             e.printStackTrace();
+        } finally {
+            // a verifier that failed half way through may still hold part of the message
+            if (!reusable)
+                verifiers.get().remove(pubKey);
         }
+        return false;
+
+    }
+
+    /**
+     * Verifies every message of {@code messages} on the calling thread, reusing the verifier of
+     * each key across the messages signed by it.
+     *
+     * @return a bitmap whose bit {@code i} is set iff {@code messages.get(i)} carries a valid
+     *         signature
+     */
+    public static BitSet verifyAll(List<SignedMessage> messages) {
+        BitSet result = new BitSet(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            SignedMessage m = messages.get(i);
+            if (verifySignature(m.pubKey, m.message, m.signature))
+                result.set(i);
+        }
+        return result;
+    }
+
+    /** @return this thread's verifier initialised with {@code pubKey}, or null if the key is unusable */
+    private static Signature getVerifier(PublicKey pubKey) {
+        LinkedHashMap<PublicKey, Signature> cache = verifiers.get();
+        Signature sig = cache.get(pubKey);
+        if (sig != null)
+            return sig;
         try {
+            sig = Signature.getInstance("SHA256withRSA");
             sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
+            return null;
+        } catch (InvalidKeyException e) {
             e.printStackTrace();
+            return null;
         }
-        return false;
-
+        cache.put(pubKey, sig);
+        return sig;
     }
 }
@@ -1,10 +1,13 @@
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class MaxFeeTxHandler {
 
     private UTXOPool unspentPool;
     private UTXOPool tempPool;
+    private ForkJoinPool verifierPool;
+    private BatchVerifier batch;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -31,6 +34,7 @@ public class MaxFeeTxHandler {
 
         double balance = 0;
         HashSet<UTXO> used = new HashSet<>();
+        byte[] rawOutputs = null; // encoded on the first signature check, shared by all inputs
 
         for (int i = 0; i < tx.numInputs(); ++i) {
             Transaction.Input currentInput = tx.getInput(i);
@@ -43,7 +47,8 @@ public class MaxFeeTxHandler {
             }
 
             Transaction.Output previousOutput = unspentPool.contains(utxo) ? unspentPool.getTxOutput(utxo) : tempPool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(previousOutput.address, tx.getRawDataToSign(i), currentInput.signature)) return false; // condition (2)
+            if (rawOutputs == null && batch == null) rawOutputs = tx.getRawOutputs();
+            if (!verifySignature(tx, i, previousOutput, rawOutputs)) return false; // condition (2)
 
             if (used.contains(utxo)) return false; // condition (3)
             used.add(utxo);
@@ -66,21 +71,18 @@ public class MaxFeeTxHandler {
         return isValidTx(tx, false);
     }
 
-    private double getFee(Transaction tx) {
-        double balance = 0;
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input currentInput = tx.getInput(i);
-            UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
-            Transaction.Output previousOutput = unspentPool.contains(utxo) ? unspentPool.getTxOutput(utxo) : tempPool.getTxOutput(utxo);
-            balance += previousOutput.value;
-        }
-
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output currentOutput = tx.getOutput(i);
-            balance -= currentOutput.value;
-        }
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output previousOutput, byte[] rawOutputs) {
+        if (batch != null) return batch.verify(tx, index, previousOutput);
+        return Crypto.verifySignature(previousOutput.address, tx.getRawDataToSign(index, rawOutputs), tx.getInput(index).signature);
+    }
 
-        return balance;
+    /**
+     * Verifies the signatures of each batch of transactions on {@code pool}, in parallel. The
+     * accepted transactions are the same as with serial verification, which a null {@code pool}
+     * restores.
+     */
+    public void setVerifierPool(ForkJoinPool pool) {
+        verifierPool = pool;
     }
 
     class Graph {
@@ -252,18 +254,6 @@ public class MaxFeeTxHandler {
         }
     }
 
-    ArrayList<Integer> linked(Transaction a, Transaction b) {
-        // does b uses a's outputs?
-        ArrayList<Integer> res = new ArrayList<Integer>();
-        for (int i = 0; i < b.numInputs(); ++i) {
-            Transaction.Input currentInput = b.getInput(i);
-            if (Arrays.equals(currentInput.prevTxHash, a.getHash())) {
-                res.add(currentInput.outputIndex);
-            }
-        }
-        return res;
-    }
-
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
@@ -289,6 +279,10 @@ public class MaxFeeTxHandler {
             }
         }
 
+        if (verifierPool != null) {
+            batch = new BatchVerifier(possibleTxs, unspentPool, verifierPool);
+        }
+
         // A transaction is good iff it respect conditions 2-5 AND its inputs are within unspentPool or tempPool
         ArrayList<Transaction> goodTransactions = new ArrayList<>();
         for (int i = 0; i < possibleTxs.length; ++i) {
@@ -297,33 +291,54 @@ public class MaxFeeTxHandler {
             }
         }
 
-        // Build the dependency graph
+        // Build the dependency graph, with edges taken straight from each input's prevTxHash
         Graph graph = new Graph(goodTransactions.size());
 
+        HashMap<ByteArrayWrapper, ArrayList<Integer>> hashIndex = new HashMap<>();
+        for (int id = 0; id < goodTransactions.size(); ++id) {
+            ByteArrayWrapper hash = new ByteArrayWrapper(goodTransactions.get(id).getHash());
+            if (!hashIndex.containsKey(hash)) {
+                hashIndex.put(hash, new ArrayList<Integer>());
+            }
+            hashIndex.get(hash).add(id);
+        }
+
         for (int id = 0; id < goodTransactions.size(); ++id) {
             Transaction tx = goodTransactions.get(id);
+            double fee = 0;
+            // output indexes spent from each good transaction, ordered by its id
+            TreeMap<Integer, ArrayList<Integer>> spentFrom = new TreeMap<>();
             for (int i = 0; i < tx.numInputs(); ++i) {
                 Transaction.Input currentInput = tx.getInput(i);
                 UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
+                Transaction.Output previousOutput;
                 if (unspentPool.contains(utxo)) {
                     graph.addUsedInput(id, utxo);
+                    previousOutput = unspentPool.getTxOutput(utxo);
+                } else {
+                    previousOutput = tempPool.getTxOutput(utxo);
                 }
-            }
-        }
+                fee += previousOutput.value;
 
-        for (int i = 0; i < goodTransactions.size(); ++i) {
-            for (int j = 0; j < goodTransactions.size(); ++j) {
-                ArrayList<Integer> e = linked(goodTransactions.get(j), goodTransactions.get(i));
-                if (e.size() > 0) {
-                    graph.addEdge(i, j, e);
+                ArrayList<Integer> parents = hashIndex.get(new ByteArrayWrapper(currentInput.prevTxHash));
+                if (parents == null) continue;
+                for (Integer parent : parents) {
+                    if (!spentFrom.containsKey(parent)) {
+                        spentFrom.put(parent, new ArrayList<Integer>());
+                    }
+                    spentFrom.get(parent).add(currentInput.outputIndex);
                 }
             }
-        }
+            for (Map.Entry<Integer, ArrayList<Integer>> e : spentFrom.entrySet()) {
+                graph.addEdge(id, e.getKey(), e.getValue());
+            }
 
-        for (int i = 0; i < goodTransactions.size(); ++i) {
-            graph.setValue(i, getFee(goodTransactions.get(i)));
-            if (isValidTx(goodTransactions.get(i))) {
-                graph.setLeaf(i);
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                fee -= tx.getOutput(i).value;
+            }
+            graph.setValue(id, fee);
+            if (isValidTx(tx)) {
+                graph.setLeaf(id);
             }
         }
 
@@ -352,6 +367,8 @@ public class MaxFeeTxHandler {
             }
         }
 
+        batch = null;
+
         Transaction[] resultArray = new Transaction[result.size()];
         result.toArray(resultArray);
         return resultArray;
@@ -84,37 +84,45 @@ public class Transaction {
         }
     }
 
+    /** @return the encoding of all outputs, which ends both the data to sign and the raw transaction */
+    public byte[] getRawOutputs() {
+        byte[][] addresses = new byte[outputs.size()][];
+        int size = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            addresses[i] = outputs.get(i).address.getEncoded();
+            size += Double.SIZE / 8 + addresses[i].length;
+        }
+        ByteBuffer rawOutputs = ByteBuffer.allocate(size);
+        for (int i = 0; i < outputs.size(); i++) {
+            rawOutputs.putDouble(outputs.get(i).value);
+            rawOutputs.put(addresses[i]);
+        }
+        return rawOutputs.array();
+    }
+
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        if (index > inputs.size())
+            return null;
+        return getRawDataToSign(index, getRawOutputs());
+    }
+
+    /**
+     * Same as {@code getRawDataToSign(index)}, with the outputs section already encoded by
+     * {@code getRawOutputs()}. Encoding it once lets every input of a transaction share it.
+     */
+    public byte[] getRawDataToSign(int index, byte[] rawOutputs) {
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        int hashLength = prevTxHash == null ? 0 : prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.SIZE / 8 + rawOutputs.length);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(rawOutputs);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -122,40 +130,25 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] rawOutputs = getRawOutputs();
+        int size = rawOutputs.length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            size += Integer.SIZE / 8;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
-
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        rawTx.put(rawOutputs);
+        return rawTx.array();
     }
 
     public void finalize() {
@@ -1,9 +1,18 @@
 import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class TxHandler {
 
     private UTXOPool unspentPool;
+    private ForkJoinPool verifierPool;
+    private BatchVerifier batch;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -29,6 +38,7 @@ public class TxHandler {
 
         double balance = 0;
         HashSet<UTXO> used = new HashSet<>();
+        byte[] rawOutputs = null; // encoded on the first signature check, shared by all inputs
 
         for (int i = 0; i < tx.numInputs(); ++i) {
             Transaction.Input currentInput = tx.getInput(i);
@@ -37,7 +47,8 @@ public class TxHandler {
             if (!unspentPool.contains(utxo)) return false; // condition (1)
 
             Transaction.Output previousOutput = unspentPool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(previousOutput.address, tx.getRawDataToSign(i), currentInput.signature)) return false; // condition (2)
+            if (rawOutputs == null && batch == null) rawOutputs = tx.getRawOutputs();
+            if (!verifySignature(tx, i, previousOutput, rawOutputs)) return false; // condition (2)
 
             if (used.contains(utxo)) return false; // condition (3)
             used.add(utxo);
@@ -56,43 +67,92 @@ public class TxHandler {
         return true;
     }
 
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output previousOutput, byte[] rawOutputs) {
+        if (batch != null) return batch.verify(tx, index, previousOutput);
+        return Crypto.verifySignature(previousOutput.address, tx.getRawDataToSign(index, rawOutputs), tx.getInput(index).signature);
+    }
+
+    /**
+     * Verifies the signatures of {@code possibleTxs} on the verifier pool ahead of the calls to
+     * {@code isValidTx} that will check them. Does nothing if no verifier pool is set.
+     */
+    public void verifySignatures(Transaction[] possibleTxs) {
+        if (verifierPool == null) return;
+        batch = new BatchVerifier(possibleTxs, unspentPool, verifierPool);
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>
+     * Each transaction is checked once, then again only when a transaction it waits for is
+     * accepted, so the cost is linear in the size of the batch whatever order it comes in.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
 
         ArrayList<Transaction> acceptedTransactions = new ArrayList<>();
+        verifySignatures(possibleTxs);
 
-        while (true) {
-            boolean foundSomething = false;
-            for (Transaction tx : possibleTxs) {
-                if (isValidTx(tx)) {
-                    acceptedTransactions.add(tx);
-                    foundSomething = true;
-                    // remove tx's input from unspentPool
-                    for (int i = 0; i < tx.numInputs(); ++i) {
-                        Transaction.Input currentInput = tx.getInput(i);
-                        UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
-                        unspentPool.removeUTXO(utxo);
-                    }
-
-                    // add tx's output to unspentPool
-                    for (int i = 0; i < tx.numOutputs(); ++i) {
-                        Transaction.Output currentOutput = tx.getOutput(i);
-                        UTXO utxo = new UTXO(tx.getHash(), i);
-                        unspentPool.addUTXO(utxo, currentOutput);
-                    }
+        // index the batch by the transactions it contains, so that a transaction missing an
+        // output one of them creates can wait for it instead of being retried on every sweep
+        HashSet<ByteArrayWrapper> batchHashes = new HashSet<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() != null) batchHashes.add(new ByteArrayWrapper(tx.getHash()));
+        }
+        HashMap<UTXO, ArrayList<Transaction>> waiting = new HashMap<>();
+        Set<Transaction> accepted = Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        ArrayDeque<Transaction> ready = new ArrayDeque<>(Arrays.asList(possibleTxs));
+
+        while (!ready.isEmpty()) {
+            Transaction tx = ready.poll();
+            if (accepted.contains(tx)) continue;
+            if (isValidTx(tx)) {
+                accepted.add(tx);
+                acceptedTransactions.add(tx);
+                // remove tx's input from unspentPool
+                for (int i = 0; i < tx.numInputs(); ++i) {
+                    Transaction.Input currentInput = tx.getInput(i);
+                    UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
+                    unspentPool.removeUTXO(utxo);
+                }
+
+                // add tx's output to unspentPool and wake the transactions waiting for it
+                for (int i = 0; i < tx.numOutputs(); ++i) {
+                    Transaction.Output currentOutput = tx.getOutput(i);
+                    UTXO utxo = new UTXO(tx.getHash(), i);
+                    unspentPool.addUTXO(utxo, currentOutput);
+                    ArrayList<Transaction> dependants = waiting.remove(utxo);
+                    if (dependants != null) ready.addAll(dependants);
+                }
+            } else {
+                // wait for the first missing output the batch may still create, if any
+                for (int i = 0; i < tx.numInputs(); ++i) {
+                    Transaction.Input currentInput = tx.getInput(i);
+                    UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
+                    if (unspentPool.contains(utxo)) continue;
+                    if (!batchHashes.contains(new ByteArrayWrapper(currentInput.prevTxHash))) break;
+                    if (!waiting.containsKey(utxo)) waiting.put(utxo, new ArrayList<Transaction>());
+                    waiting.get(utxo).add(tx);
+                    break;
                 }
             }
-            if (!foundSomething) break;
         }
+        batch = null;
 
         Transaction[] result = new Transaction[acceptedTransactions.size()];
         acceptedTransactions.toArray(result);
         return result;
     }
 
+    /**
+     * Verifies the signatures of each batch of transactions on {@code pool}, in parallel. The
+     * accepted transactions are the same as with serial verification, which a null {@code pool}
+     * restores.
+     */
+    public void setVerifierPool(ForkJoinPool pool) {
+        verifierPool = pool;
+    }
 }
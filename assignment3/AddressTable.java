@@ -0,0 +1,124 @@
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers the addresses of the outputs committed to UTXO pools, so that code comparing, hashing or
+ * caching by address can use a small int instead of the key. Two keys get the same id iff their
+ * X.509 encodings are equal. Ids start at 0, are never reused and stay valid for the life of the
+ * process, so the table never shrinks. Only {@code UTXOPool.addUTXO} adds keys to the shared
+ * table: verifying a signature or comparing outputs merely looks a key up, so keys that arrive in
+ * transactions the pools never take do not pile up here.
+ *
+ * <p>
+ * Each id comes with the encodings of its key, worked out once when the key is first interned.
+ * Looking up a known key or an id takes no lock; only adding a key does.
+ */
+public class AddressTable {
+
+    /** An address and its encodings, none of which may be modified */
+    public static final class Entry {
+        /** the id of {@code address}, or -1 if the entry was made for a key that is not interned */
+        public final int id;
+        public final PublicKey address;
+        /** the X.509 encoding of {@code address} */
+        public final byte[] x509;
+        /** the public exponent then the modulus, as {@code getRawOutputs()} writes them, or null for a key that is not RSA */
+        public final byte[] raw;
+        /** {@code Arrays.hashCode(x509)} */
+        public final int hash;
+
+        private Entry(int id, PublicKey address, byte[] x509) {
+            this.id = id;
+            this.address = address;
+            this.x509 = x509;
+            this.hash = Arrays.hashCode(x509);
+            if (address instanceof RSAPublicKey) {
+                RSAPublicKey key = (RSAPublicKey) address;
+                byte[] exponent = key.getPublicExponent().toByteArray();
+                byte[] modulus = key.getModulus().toByteArray();
+                byte[] raw = Arrays.copyOf(exponent, exponent.length + modulus.length);
+                System.arraycopy(modulus, 0, raw, exponent.length, modulus.length);
+                this.raw = raw;
+            } else {
+                this.raw = null;
+            }
+        }
+    }
+
+    private static final AddressTable shared = new AddressTable();
+
+    private ConcurrentHashMap<ByteArrayWrapper, Entry> byEncoding = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+    /** entries by id, replaced by a larger copy when full */
+    private volatile Entry[] byId = new Entry[1024];
+    private int size;
+
+    /** @return the table every output and verifier of the process uses */
+    public static AddressTable getShared() {
+        return shared;
+    }
+
+    /** @return the entry of {@code address}, adding it if it is new */
+    public Entry intern(PublicKey address) {
+        return intern(address, address.getEncoded());
+    }
+
+    /** Same as {@code intern(address)} for a key whose X.509 encoding {@code x509} is known */
+    Entry intern(PublicKey address, byte[] x509) {
+        ByteArrayWrapper key = new ByteArrayWrapper(x509);
+        Entry e = byEncoding.get(key);
+        if (e != null) return e;
+        synchronized (this) {
+            e = byEncoding.get(key);
+            if (e != null) return e;
+            e = new Entry(size, address, x509);
+            Entry[] entries = byId;
+            if (size == entries.length) entries = Arrays.copyOf(entries, 2 * size);
+            entries[size++] = e;
+            byId = entries;
+            // published last, so that whoever finds the entry by encoding also finds it by id
+            byEncoding.put(key, e);
+            return e;
+        }
+    }
+
+    /**
+     * @return the entry of {@code address} if it is interned, otherwise a new entry with id -1
+     *         that the table does not keep
+     */
+    public Entry lookup(PublicKey address) {
+        byte[] x509 = address.getEncoded();
+        Entry e = find(x509);
+        return e != null ? e : new Entry(-1, address, x509);
+    }
+
+    /** @return the entry of the key with X.509 encoding {@code x509}, or null if it is not interned */
+    public Entry find(byte[] x509) {
+        return byEncoding.get(new ByteArrayWrapper(x509));
+    }
+
+    /** @return the id of {@code address}, or -1 if it is null or not interned */
+    public int getId(PublicKey address) {
+        if (address == null) return -1;
+        Entry e = find(address.getEncoded());
+        return e == null ? -1 : e.id;
+    }
+
+    /** @return the entry with id {@code id}, or null if there is none */
+    public Entry getEntry(int id) {
+        Entry[] entries = byId;
+        return id < 0 || id >= entries.length ? null : entries[id];
+    }
+
+    /** @return the address with id {@code id}, or null if there is none */
+    public PublicKey getAddress(int id) {
+        Entry e = getEntry(id);
+        return e == null ? null : e.address;
+    }
+
+    /** @return the number of addresses interned so far */
+    public synchronized int size() {
+        return size;
+    }
+}
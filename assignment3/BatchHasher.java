@@ -0,0 +1,58 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finalizes a whole batch of transactions, splitting the work across a {@code ForkJoinPool}.
+ * Each worker hashes with its own thread's digest, and the address encodings a transaction
+ * needs are cached in its outputs, so transactions sharing outputs share that work as well.
+ */
+public class BatchHasher {
+
+    /** a task hashes its range of transactions itself once it holds fewer than this many */
+    private static final int THRESHOLD = 64;
+
+    private Transaction[] txs;
+
+    private BatchHasher(Transaction[] txs) {
+        this.txs = txs;
+    }
+
+    /**
+     * Calls {@code finalize()} on every transaction of {@code txs}. When {@code pool} is null the
+     * transactions are hashed on the calling thread.
+     */
+    public static void finalizeAll(Transaction[] txs, ForkJoinPool pool) {
+        BatchHasher hasher = new BatchHasher(txs);
+        if (pool == null) {
+            hasher.hashRange(0, txs.length);
+        } else {
+            pool.invoke(hasher.new HashTask(0, txs.length));
+        }
+    }
+
+    private void hashRange(int from, int to) {
+        for (int i = from; i < to; ++i)
+            txs[i].finalize();
+    }
+
+    private class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int from;
+        private int to;
+
+        HashTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                hashRange(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new HashTask(from, mid), new HashTask(mid, to));
+        }
+    }
+}
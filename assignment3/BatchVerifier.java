@@ -0,0 +1,114 @@
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies the input signatures of a whole batch of transactions up front, splitting the work
+ * across a {@code ForkJoinPool}. Only condition (2) of {@code isValidTx} is computed here; the
+ * checks that depend on the state of the UTXO pool stay with the handler and run serially.
+ */
+public class BatchVerifier {
+
+    /** a task verifies its range of inputs itself once it holds fewer than this many */
+    private static final int THRESHOLD = 16;
+
+    private Transaction[] jobTx;
+    private int[] jobIndex;
+    private Transaction.Output[] jobOutput;
+    private byte[][] jobRawOutputs;
+    private boolean[] jobResult;
+
+    /** for each transaction, the position of its first input in the job arrays */
+    private IdentityHashMap<Transaction, Integer> firstJob;
+
+    /**
+     * Verifies every input of {@code txs} whose claimed output can be found either in
+     * {@code utxoPool} or among the outputs of {@code txs}. When {@code pool} is null the
+     * signatures are verified on the calling thread.
+     */
+    public BatchVerifier(Transaction[] txs, UTXOPool utxoPool, ForkJoinPool pool) {
+        // outputs created inside the batch may be claimed by other transactions of the batch
+        UTXOPool batchPool = new UTXOPool();
+        int numJobs = 0;
+        for (Transaction tx : txs) {
+            numJobs += tx.numInputs();
+            if (tx.getHash() == null) continue;
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                batchPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+
+        jobTx = new Transaction[numJobs];
+        jobIndex = new int[numJobs];
+        jobOutput = new Transaction.Output[numJobs];
+        jobRawOutputs = new byte[numJobs][];
+        jobResult = new boolean[numJobs];
+        firstJob = new IdentityHashMap<>();
+
+        int job = 0;
+        for (Transaction tx : txs) {
+            if (firstJob.containsKey(tx)) continue;
+            firstJob.put(tx, job);
+            byte[] rawOutputs = tx.numInputs() > 0 ? tx.getRawOutputs() : null;
+            for (int i = 0; i < tx.numInputs(); ++i, ++job) {
+                Transaction.Input currentInput = tx.getInput(i);
+                jobTx[job] = tx;
+                jobIndex[job] = i;
+                jobRawOutputs[job] = rawOutputs;
+                if (currentInput.prevTxHash == null) continue;
+                UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
+                jobOutput[job] = utxoPool.contains(utxo) ? utxoPool.getTxOutput(utxo) : batchPool.getTxOutput(utxo);
+            }
+        }
+
+        if (pool == null) {
+            verifyRange(0, job);
+        } else {
+            pool.invoke(new VerifyTask(0, job));
+        }
+    }
+
+    /**
+     * @return true if the signature on input {@code index} of {@code tx} is valid for the address
+     *         of {@code previousOutput}. The precomputed result is used when the batch resolved
+     *         that input to the same output; otherwise the signature is verified directly.
+     */
+    public boolean verify(Transaction tx, int index, Transaction.Output previousOutput) {
+        Integer first = firstJob.get(tx);
+        if (first != null && jobOutput[first + index] == previousOutput) {
+            return jobResult[first + index];
+        }
+        return SignatureCache.verifySignature(previousOutput, tx.getRawDataToSign(index), tx.getInput(index).signature);
+    }
+
+    private void verifyRange(int from, int to) {
+        for (int job = from; job < to; ++job) {
+            Transaction.Output previousOutput = jobOutput[job];
+            if (previousOutput == null) continue;
+            Transaction tx = jobTx[job];
+            int index = jobIndex[job];
+            jobResult[job] = SignatureCache.verifySignature(previousOutput, tx.getRawDataToSign(index, jobRawOutputs[job]), tx.getInput(index).signature);
+        }
+    }
+
+    private class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int from;
+        private int to;
+
+        VerifyTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                verifyRange(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new VerifyTask(from, mid), new VerifyTask(mid, to));
+        }
+    }
+}
@@ -1,6 +1,6 @@
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.ByteArrayOutputStream;
 import java.security.PublicKey;
 import java.util.ArrayList;
 
@@ -12,12 +12,20 @@ public class Block {
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** over the hashes of {@code txs}, kept up to date by {@code addTransaction} */
+    private MerkleTree merkleTree;
+    /** the transactions the tree was built from, and the hash array each had then */
+    private ArrayList<Transaction> leafTxs;
+    private ArrayList<byte[]> leafHashes;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        leafTxs = new ArrayList<Transaction>();
+        leafHashes = new ArrayList<byte[]>();
     }
 
     public Transaction getCoinbase() {
@@ -40,34 +48,83 @@ public class Block {
         return txs.get(index);
     }
 
+    /** Adds {@code tx}, which should already be finalized, to the block */
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        addLeaf(tx);
+    }
+
+    private void addLeaf(Transaction tx) {
+        merkleTree.add(leafOf(tx));
+        leafTxs.add(tx);
+        leafHashes.add(tx.getHash());
+    }
+
+    private static byte[] leafOf(Transaction tx) {
+        if (tx.getHash() != null) return tx.getHash();
+        return Crypto.sha256(tx.getRawTx());
+    }
+
+    /** @return the root of the Merkle tree over the hashes of the transactions, coinbase excluded */
+    public byte[] getMerkleRoot() {
+        syncMerkleTree();
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the proof that transaction {@code index} is in this block, for
+     *         {@code MerkleTree.verifyProof} along with {@code getMerkleRoot()}
+     */
+    public byte[][] getMerkleProof(int index) {
+        syncMerkleTree();
+        return merkleTree.getProof(index);
+    }
+
+    /**
+     * Rebuilds the tree if the transactions were changed through {@code getTransactions()}, or
+     * finalized again since they were added. Comparing references costs no hashing; a
+     * transaction without a hash is hashed from its contents, so it forces a rebuild.
+     */
+    private void syncMerkleTree() {
+        if (!merkleTreeStale()) return;
+        merkleTree = new MerkleTree();
+        leafTxs.clear();
+        leafHashes.clear();
+        for (Transaction tx : txs)
+            addLeaf(tx);
+    }
+
+    private boolean merkleTreeStale() {
+        if (leafTxs.size() != txs.size()) return true;
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (tx != leafTxs.get(i) || tx.getHash() == null || tx.getHash() != leafHashes.get(i)) return true;
+        }
+        return false;
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        ByteArrayOutputStream rawBlock = new ByteArrayOutputStream();
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
+            rawBlock.write(prevBlockHash, 0, prevBlockHash.length);
         for (int i = 0; i < txs.size(); i++) {
             byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
+            rawBlock.write(rawTx, 0, rawTx.length);
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+        return rawBlock.toByteArray();
     }
 
+    /**
+     * Computes the hash of the block from the previous block hash and the Merkle root, so it
+     * costs a single hash however many transactions the block holds
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        // the root first, since building the tree uses the thread's digest too
+        byte[] merkleRoot = getMerkleRoot();
+        MessageDigest md = Crypto.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        hash = md.digest();
     }
 }
@@ -0,0 +1,228 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Selects the transactions of a new block by ancestor-package fee rate, so that a child paying a
+ * high fee can pull in the low-fee parents it needs (child pays for parent). Every candidate is
+ * scored by the total fee of itself and its not yet selected ancestors over their total size. The
+ * best package is taken, the scores of its descendants are updated, and so on until the block is
+ * full or no candidate is left.
+ */
+public class BlockAssembler {
+
+    /** candidates with more unconfirmed ancestors than this are left for a later block */
+    public static final int MAX_ANCESTORS = 100;
+
+    private int maxBlockSize;
+
+    private static class Entry {
+        int id;
+        Transaction tx;
+        double fee;
+        int size;
+        ArrayList<Entry> parents = new ArrayList<Entry>();
+        ArrayList<Entry> children = new ArrayList<Entry>();
+        HashSet<Entry> ancestors = new HashSet<Entry>();
+        double ancestorFee;
+        long ancestorSize;
+        boolean taken;
+        boolean invalid;
+
+        double score() {
+            return ancestorFee / Math.max(1, ancestorSize);
+        }
+    }
+
+    /**
+     * Creates an assembler for blocks whose transactions, coinbase excluded, take at most
+     * {@code maxBlockSize} bytes of {@code getRawTx()}
+     */
+    public BlockAssembler(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * @return a mutually valid subset of {@code candidates} on top of {@code utxoPool}, parents
+     *         before children, chosen by ancestor-package fee rate and within the block size limit
+     */
+    public Transaction[] assemble(UTXOPool utxoPool, Transaction[] candidates) {
+        ArrayList<Entry> entries = index(utxoPool, candidates);
+
+        TreeSet<Entry> byScore = new TreeSet<Entry>(new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = Double.compare(b.score(), a.score());
+                return c != 0 ? c : Integer.compare(a.id, b.id);
+            }
+        });
+        for (Entry e : entries) {
+            if (!e.invalid) byScore.add(e);
+        }
+
+        UTXOPool working = utxoPool;
+        ArrayList<Transaction> result = new ArrayList<Transaction>();
+        long blockSize = 0;
+        while (!byScore.isEmpty()) {
+            Entry best = byScore.pollFirst();
+            if (blockSize + best.ancestorSize > maxBlockSize) continue;
+
+            // ids follow a topological order, so sorting by id puts parents first
+            ArrayList<Entry> pkg = new ArrayList<Entry>();
+            for (Entry a : best.ancestors) {
+                if (!a.taken) pkg.add(a);
+            }
+            pkg.add(best);
+            pkg.sort(new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return Integer.compare(a.id, b.id);
+                }
+            });
+            Transaction[] pkgTxs = new Transaction[pkg.size()];
+            for (int i = 0; i < pkgTxs.length; i++)
+                pkgTxs[i] = pkg.get(i).tx;
+
+            // try the package on a copy, which costs nothing with the default UTXO store
+            TxHandler trial = new TxHandler(working);
+            Transaction[] accepted = trial.handleTxs(pkgTxs);
+            if (accepted.length < pkgTxs.length) {
+                HashSet<Transaction> ok = new HashSet<Transaction>(Arrays.asList(accepted));
+                for (Entry e : pkg) {
+                    if (!ok.contains(e.tx)) invalidate(e, byScore);
+                }
+                continue;
+            }
+
+            working = trial.getUTXOPool();
+            for (Entry e : pkg) {
+                e.taken = true;
+                byScore.remove(e);
+                result.add(e.tx);
+                blockSize += e.size;
+            }
+            for (Entry e : pkg) {
+                for (Entry d : descendants(e)) {
+                    if (d.taken || d.invalid) continue;
+                    byScore.remove(d);
+                    d.ancestorFee -= e.fee;
+                    d.ancestorSize -= e.size;
+                    byScore.add(d);
+                }
+            }
+        }
+
+        return result.toArray(new Transaction[0]);
+    }
+
+    /**
+     * Builds the dependency graph of {@code candidates}, giving ids in topological order, and
+     * computes each entry's fee, size and ancestors. Entries with an input that cannot be
+     * resolved, or with too many ancestors, are marked invalid along with their descendants.
+     */
+    private ArrayList<Entry> index(UTXOPool utxoPool, Transaction[] candidates) {
+        HashMap<ByteArrayWrapper, Entry> byHash = new HashMap<ByteArrayWrapper, Entry>();
+        ArrayList<Entry> unordered = new ArrayList<Entry>();
+        for (Transaction tx : candidates) {
+            if (tx == null || tx.getHash() == null) continue;
+            ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+            if (byHash.containsKey(hash)) continue;
+            Entry e = new Entry();
+            e.tx = tx;
+            e.size = tx.getRawTx().length;
+            byHash.put(hash, e);
+            unordered.add(e);
+        }
+
+        for (Entry e : unordered) {
+            double fee = 0;
+            for (Transaction.Input in : e.tx.getInputs()) {
+                if (in.prevTxHash == null) {
+                    e.invalid = true;
+                    continue;
+                }
+                Transaction.Output prev = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+                Entry parent = prev == null ? byHash.get(new ByteArrayWrapper(in.prevTxHash)) : null;
+                if (parent != null) {
+                    if (in.outputIndex >= 0 && in.outputIndex < parent.tx.numOutputs())
+                        prev = parent.tx.getOutput(in.outputIndex);
+                    if (!e.parents.contains(parent)) {
+                        e.parents.add(parent);
+                        parent.children.add(e);
+                    }
+                }
+                if (prev == null) {
+                    e.invalid = true;
+                    continue;
+                }
+                fee += prev.value;
+            }
+            for (Transaction.Output out : e.tx.getOutputs())
+                fee -= out.value;
+            e.fee = fee;
+        }
+
+        // Kahn's algorithm; entries left over sit on a cycle and can never be valid
+        ArrayList<Entry> ordered = new ArrayList<Entry>();
+        HashMap<Entry, Integer> missing = new HashMap<Entry, Integer>();
+        ArrayDeque<Entry> ready = new ArrayDeque<Entry>();
+        for (Entry e : unordered) {
+            missing.put(e, e.parents.size());
+            if (e.parents.isEmpty()) ready.add(e);
+        }
+        while (!ready.isEmpty()) {
+            Entry e = ready.poll();
+            e.id = ordered.size();
+            ordered.add(e);
+            for (Entry c : e.children) {
+                int m = missing.get(c) - 1;
+                missing.put(c, m);
+                if (m == 0) ready.add(c);
+            }
+        }
+
+        for (Entry e : ordered) {
+            for (Entry p : e.parents) {
+                if (p.invalid) e.invalid = true;
+                e.ancestors.add(p);
+                e.ancestors.addAll(p.ancestors);
+            }
+            if (e.ancestors.size() > MAX_ANCESTORS) {
+                e.invalid = true;
+                e.ancestors.clear();
+            }
+            if (e.invalid) continue;
+            e.ancestorFee = e.fee;
+            e.ancestorSize = e.size;
+            for (Entry a : e.ancestors) {
+                e.ancestorFee += a.fee;
+                e.ancestorSize += a.size;
+            }
+        }
+        return ordered;
+    }
+
+    private static ArrayList<Entry> descendants(Entry e) {
+        ArrayList<Entry> result = new ArrayList<Entry>();
+        HashSet<Entry> seen = new HashSet<Entry>();
+        ArrayDeque<Entry> queue = new ArrayDeque<Entry>(e.children);
+        while (!queue.isEmpty()) {
+            Entry d = queue.poll();
+            if (!seen.add(d)) continue;
+            result.add(d);
+            queue.addAll(d.children);
+        }
+        return result;
+    }
+
+    private static void invalidate(Entry e, TreeSet<Entry> byScore) {
+        e.invalid = true;
+        byScore.remove(e);
+        for (Entry d : descendants(e)) {
+            d.invalid = true;
+            byScore.remove(d);
+        }
+    }
+}
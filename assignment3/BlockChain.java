@@ -2,20 +2,27 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
 
     private class ActiveBlock implements Comparable<ActiveBlock> {
         public Block block;
-        public UTXOPool utxoPool;
+        /** null once no live block needs to be rolled back past this one */
+        public ActiveBlock parent;
+        public BlockUndo undo;
         public int height;
         public int creationTime;
 
-        ActiveBlock(Block block, UTXOPool utxoPool, int height, int creationTime) {
+        ActiveBlock(Block block, ActiveBlock parent, BlockUndo undo, int height, int creationTime) {
             this.block = block;
-            this.utxoPool = utxoPool;
+            this.parent = parent;
+            this.undo = undo;
             this.height = height;
             this.creationTime = creationTime;
         }
@@ -26,26 +33,125 @@ public class BlockChain {
         }
     }
 
+    /**
+     * The difference a block makes to the UTXO pool of its parent: the UTXOs it removed or
+     * replaced, with their previous outputs, and the UTXOs it added. Only UTXOs that the block
+     * touches are recorded, so the record grows with the block and not with the UTXO set.
+     */
+    private static class BlockUndo {
+        ArrayList<UTXO> spent = new ArrayList<>();
+        ArrayList<Transaction.Output> spentOutputs = new ArrayList<>();
+        ArrayList<UTXO> created = new ArrayList<>();
+        ArrayList<Transaction.Output> createdOutputs = new ArrayList<>();
+
+        /** Records how {@code block} turned {@code before} into {@code after} */
+        BlockUndo(Block block, UTXOPool before, UTXOPool after) {
+            LinkedHashSet<UTXO> touched = new LinkedHashSet<>();
+            ArrayList<Transaction> txs = new ArrayList<>(block.getTransactions());
+            txs.add(block.getCoinbase());
+            for (Transaction tx : txs) {
+                for (Transaction.Input input : tx.getInputs()) {
+                    touched.add(new UTXO(input.prevTxHash, input.outputIndex));
+                }
+                for (int i = 0; i < tx.numOutputs(); ++i) {
+                    touched.add(new UTXO(tx.getHash(), i));
+                }
+            }
+            for (UTXO utxo : touched) {
+                boolean wasThere = before.contains(utxo);
+                boolean isThere = after.contains(utxo);
+                Transaction.Output previous = before.getTxOutput(utxo);
+                Transaction.Output current = after.getTxOutput(utxo);
+                if (wasThere && isThere && previous == current) continue;
+                if (wasThere) {
+                    spent.add(utxo);
+                    spentOutputs.add(previous);
+                }
+                if (isThere) {
+                    created.add(utxo);
+                    createdOutputs.add(current);
+                }
+            }
+        }
+
+        /** Turns the pool of the parent into the pool of the block */
+        void redo(UTXOPool pool) {
+            for (UTXO utxo : spent) pool.removeUTXO(utxo);
+            for (int i = 0; i < created.size(); ++i) pool.addUTXO(created.get(i), createdOutputs.get(i));
+        }
+
+        /** Turns the pool of the block back into the pool of its parent */
+        void undo(UTXOPool pool) {
+            for (UTXO utxo : created) pool.removeUTXO(utxo);
+            for (int i = 0; i < spent.size(); ++i) pool.addUTXO(spent.get(i), spentOutputs.get(i));
+        }
+    }
+
     TreeSet<ActiveBlock> activeBlocks;
     HashMap<ByteArrayWrapper, ActiveBlock> hash2ActiveBlock;
     TransactionPool pending;
     private int timestamp;
+    private ForkJoinPool verifierPool;
+    private BlockStore blockStore;
+    /** trimmed blocks that could not be appended to the block store yet, oldest first */
+    private ArrayDeque<Block> unstored = new ArrayDeque<>();
+    private OrphanBlockPool orphans;
+
+    private File snapshotFile;
+    private int snapshotInterval;
+    private int blocksSinceSnapshot;
+    private AtomicBoolean snapshotting = new AtomicBoolean();
+
+    /** the only UTXO pool kept in full, which is the pool of block {@code materialized} */
+    private UTXOPool materializedPool;
+    private ActiveBlock materialized;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
-        UTXOPool genesisUTXOPool = new UTXOPool();
+        this(genesisBlock, new PersistentUTXOMap());
+    }
+
+    /**
+     * create a block chain with just a genesis block, whose UTXOs are kept in {@code store}, for
+     * example a {@code MappedUTXOStore}. Assume {@code genesisBlock} is a valid block
+     */
+    public BlockChain(Block genesisBlock, UTXOStore store) {
+        UTXOPool genesisUTXOPool = new UTXOPool(store);
         for (Transaction tx : genesisBlock.getTransactions()) {
             addUTXONewTransaction(genesisUTXOPool, tx);
         }
         addUTXONewTransaction(genesisUTXOPool, genesisBlock.getCoinbase());
-        ActiveBlock genesisActiveBlock = new ActiveBlock(genesisBlock, genesisUTXOPool, 0, 0);
+        start(genesisBlock, genesisUTXOPool);
+    }
+
+    /**
+     * restore a block chain from {@code snapshot}, in time proportional to the size of the
+     * snapshot: its base block takes the place of the genesis block and the blocks above it are
+     * added again. Forks off the main chain are not restored.
+     *
+     * @throws IllegalArgumentException if a block of the snapshot is not valid
+     */
+    public BlockChain(ChainSnapshot snapshot) {
+        ArrayList<Block> blocks = snapshot.getBlocks();
+        start(blocks.get(0), snapshot.getUTXOPool());
+        for (int i = 1; i < blocks.size(); ++i) {
+            if (!addBlock(blocks.get(i))) throw new IllegalArgumentException("invalid block " + i + " in snapshot");
+        }
+    }
+
+    /** make {@code base}, whose UTXO pool is {@code utxoPool}, the only block of the chain */
+    private void start(Block base, UTXOPool utxoPool) {
+        utxoPool.commit();
+        ActiveBlock baseActiveBlock = new ActiveBlock(base, null, null, 0, 0);
+        materializedPool = utxoPool;
+        materialized = baseActiveBlock;
         activeBlocks = new TreeSet<>();
-        activeBlocks.add(genesisActiveBlock);
+        activeBlocks.add(baseActiveBlock);
         hash2ActiveBlock = new HashMap<>();
-        hash2ActiveBlock.put(new ByteArrayWrapper(genesisBlock.getHash()), genesisActiveBlock);
+        hash2ActiveBlock.put(new ByteArrayWrapper(base.getHash()), baseActiveBlock);
         pending = new TransactionPool();
         timestamp = 0;
     }
@@ -61,8 +167,114 @@ public class BlockChain {
     private void trim() {
         int maxHeight = activeBlocks.last().height;
         while (activeBlocks.first().height < maxHeight - CUT_OFF_AGE) {
-            ActiveBlock tobeForgotten = activeBlocks.pollFirst();
+            ActiveBlock tobeForgotten = activeBlocks.first();
+            if (blockStore != null) unstored.add(tobeForgotten.block);
+            storeTrimmedBlocks();
+            activeBlocks.pollFirst();
             hash2ActiveBlock.remove(new ByteArrayWrapper(tobeForgotten.block.getHash()));
+            // it stays reachable while a fork still needs to be rolled across it
+        }
+
+        // no live block is ever rolled back past the common ancestor of all of them
+        ActiveBlock common = null;
+        for (ActiveBlock b : activeBlocks) {
+            common = common == null ? b : commonAncestor(common, b);
+        }
+        common.parent = null;
+    }
+
+    /**
+     * Append the trimmed blocks not yet in the block store to it, oldest first. If the store
+     * fails, the rest wait for the next trim so that they are appended in order, and the chain
+     * carries on without them meanwhile.
+     */
+    private void storeTrimmedBlocks() {
+        while (blockStore != null && !unstored.isEmpty()) {
+            try {
+                blockStore.append(unstored.peek());
+            } catch (IOException x) {
+                x.printStackTrace(System.err);
+                return;
+            }
+            unstored.poll();
+        }
+    }
+
+    private static ActiveBlock commonAncestor(ActiveBlock a, ActiveBlock b) {
+        while (a.height > b.height) a = a.parent;
+        while (b.height > a.height) b = b.parent;
+        while (a != b) {
+            a = a.parent;
+            b = b.parent;
+        }
+        return a;
+    }
+
+    /**
+     * @return the materialized pool, after rolling it back from the block it belonged to down to
+     *         the common ancestor with {@code target}, then forward up to {@code target}
+     */
+    private UTXOPool materialize(ActiveBlock target) {
+        HashSet<ActiveBlock> materializedAncestors = new HashSet<>();
+        for (ActiveBlock b = materialized; b != null; b = b.parent) materializedAncestors.add(b);
+
+        ArrayList<ActiveBlock> forward = new ArrayList<>();
+        ActiveBlock common = target;
+        while (!materializedAncestors.contains(common)) {
+            forward.add(common);
+            common = common.parent;
+        }
+
+        for (ActiveBlock b = materialized; b != common; b = b.parent) b.undo.undo(materializedPool);
+        for (int i = forward.size() - 1; i >= 0; --i) forward.get(i).undo.redo(materializedPool);
+        materialized = target;
+        return materializedPool;
+    }
+
+    /**
+     * Bring the transaction pool in line with the switch of the max height block from
+     * {@code oldTip} to {@code newTip}, whose pool is materialized: drop the transactions of the
+     * blocks that were connected, put back those of the blocks that were disconnected, and evict
+     * pending transactions that no longer have their inputs. Only transactions spending an output
+     * one of those blocks touched are checked again.
+     */
+    private void updatePending(ActiveBlock oldTip, ActiveBlock newTip) {
+        ActiveBlock common = commonAncestor(oldTip, newTip);
+        ArrayList<ActiveBlock> disconnected = new ArrayList<>();
+        for (ActiveBlock b = oldTip; b != common; b = b.parent) disconnected.add(b);
+        ArrayList<ActiveBlock> connected = new ArrayList<>();
+        for (ActiveBlock b = newTip; b != common; b = b.parent) connected.add(b);
+
+        HashSet<ByteArrayWrapper> confirmed = new HashSet<>();
+        for (ActiveBlock b : connected) {
+            for (Transaction tx : b.block.getTransactions()) {
+                confirmed.add(new ByteArrayWrapper(tx.getHash()));
+                pending.removeTransaction(tx.getHash());
+            }
+        }
+        for (int i = disconnected.size() - 1; i >= 0; --i) {
+            for (Transaction tx : disconnected.get(i).block.getTransactions()) {
+                if (!confirmed.contains(new ByteArrayWrapper(tx.getHash()))) pending.addTransaction(tx, materializedPool);
+            }
+        }
+
+        ArrayList<ActiveBlock> changed = new ArrayList<>(disconnected);
+        changed.addAll(connected);
+        for (ActiveBlock b : changed) {
+            evictSpenders(b.undo.spent);
+            evictSpenders(b.undo.created);
+        }
+    }
+
+    /** Evict the pending transactions spending one of {@code utxos} that is no longer available */
+    private void evictSpenders(ArrayList<UTXO> utxos) {
+        for (UTXO utxo : utxos) {
+            if (materializedPool.contains(utxo)) continue;
+            Transaction parent = pending.getTransaction(utxo.getTxHash());
+            if (parent != null && utxo.getIndex() >= 0 && utxo.getIndex() < parent.numOutputs()) continue;
+            for (Transaction spender : new ArrayList<>(pending.getSpenders(utxo))) {
+                pending.removeWithDescendants(spender.getHash());
+            }
         }
     }
 
@@ -73,7 +285,7 @@ public class BlockChain {
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
-        return activeBlocks.last().utxoPool;
+        return new UTXOPool(materialize(activeBlocks.last()));
     }
 
     /** Get the transaction pool to mine a new block */
@@ -81,6 +293,11 @@ public class BlockChain {
         return pending;
     }
 
+    /** Get the version of the transaction pool, which changes whenever the pool does */
+    public long getTransactionPoolVersion() {
+        return pending.getVersion();
+    }
+
     /**
      * Add {@code block} to the block chain if it is valid. For validity, all transactions should be
      * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}.
@@ -94,49 +311,189 @@ public class BlockChain {
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        return addBlock(block, null);
+    }
+
+    /**
+     * Same as {@code addBlock(block)}, for a block received from {@code source}. If an orphan pool
+     * is set and the parent of {@code block} is unknown, the block waits there for its parent and
+     * false is returned. Once a block is added, the blocks waiting for it are added too, and so on
+     * down the line.
+     */
+    public boolean addBlock(Block block, Object source) {
         byte[] parentHash = block.getPrevBlockHash();
         if (parentHash == null) return false;
-        ByteArrayWrapper parentHashWrapper = new ByteArrayWrapper(parentHash);
-        if (!hash2ActiveBlock.containsKey(parentHashWrapper)) return false;
-
-        ActiveBlock parentBlock = hash2ActiveBlock.get(parentHashWrapper);
+        if (!hash2ActiveBlock.containsKey(new ByteArrayWrapper(parentHash))) {
+            if (orphans != null && !hash2ActiveBlock.containsKey(new ByteArrayWrapper(block.getHash()))) {
+                orphans.addBlock(block, source);
+            }
+            return false;
+        }
+        if (!connect(block)) return false;
 
-        TxHandler txHandler = new TxHandler(parentBlock.utxoPool);
-        int validTxCount = 0;
-        while (true) {
-            int found = 0;
-            for (Transaction tx : block.getTransactions()) {
-                if (!txHandler.isValidTx(tx)) continue;
-                found++;
-                for (Transaction.Input input : tx.getInputs()) {
-                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                    txHandler.getUTXOPool().removeUTXO(utxo);
+        if (orphans != null) {
+            ArrayDeque<Block> connected = new ArrayDeque<>();
+            connected.add(block);
+            while (!connected.isEmpty()) {
+                for (Block child : orphans.removeChildren(connected.poll().getHash())) {
+                    if (connect(child)) connected.add(child);
                 }
-                addUTXONewTransaction(txHandler.getUTXOPool(), tx);
             }
-            if (found == 0) break;
-            validTxCount += found;
-            if (validTxCount >= block.getTransactions().size()) break;
         }
+        return true;
+    }
+
+    /** Add {@code block}, whose parent is an active block, if it is valid */
+    private boolean connect(Block block) {
+        ByteArrayWrapper parentHashWrapper = new ByteArrayWrapper(block.getPrevBlockHash());
+        // the parent may have been trimmed while this block waited as an orphan
+        if (!hash2ActiveBlock.containsKey(parentHashWrapper)) return false;
 
-        if (validTxCount < block.getTransactions().size()) return false;
-        addUTXONewTransaction(txHandler.getUTXOPool(), block.getCoinbase());
+        ActiveBlock parentBlock = hash2ActiveBlock.get(parentHashWrapper);
+        ActiveBlock oldTip = activeBlocks.last();
+
+        UTXOPool parentPool = materialize(parentBlock);
+        Transaction[] txs = block.getTransactions().toArray(new Transaction[0]);
+        UTXOPool blockPool = new BlockValidator(verifierPool).validate(parentPool, txs);
+        if (blockPool == null) return false;
+        addUTXONewTransaction(blockPool, block.getCoinbase());
 
-        ActiveBlock currentBlock = new ActiveBlock(block, txHandler.getUTXOPool(), parentBlock.height + 1, ++timestamp);
+        BlockUndo undo = new BlockUndo(block, parentPool, blockPool);
+        ActiveBlock currentBlock = new ActiveBlock(block, parentBlock, undo, parentBlock.height + 1, ++timestamp);
         activeBlocks.add(currentBlock);
         hash2ActiveBlock.put(new ByteArrayWrapper(currentBlock.block.getHash()), currentBlock);
 
-        for (Transaction tx : block.getTransactions()) {
-            pending.removeTransaction(tx.getHash());
-        }
-
         trim();
 
+        // keep the tip materialized, and durable if the pool lives on disk
+        materialize(activeBlocks.last());
+        materializedPool.commit();
+
+        if (activeBlocks.last() != oldTip) updatePending(oldTip, activeBlocks.last());
+
+        if (snapshotFile != null && ++blocksSinceSnapshot >= snapshotInterval) {
+            blocksSinceSnapshot = 0;
+            writeSnapshotInBackground();
+        }
+
         return true;
     }
 
+    /**
+     * Hold at most {@code maxCount} pending transactions taking at most {@code maxBytes} bytes,
+     * evicting those with the lowest fee rate, starting with the transactions pending now
+     */
+    public void setTransactionPoolLimits(int maxCount, long maxBytes) {
+        pending = new TransactionPool(pending, maxCount, maxBytes);
+    }
+
     /** Add a transaction to the transaction pool */
     public void addTransaction(Transaction tx) {
-        pending.addTransaction(tx);
+        pending.addTransaction(tx, materialize(activeBlocks.last()));
+    }
+
+    /**
+     * Add the transactions of {@code batch} that are valid on top of the max height block, alone
+     * or after others of the batch, to the transaction pool. The batch is checked in its columnar
+     * form, and only the transactions accepted are turned into objects.
+     *
+     * @return the number of transactions added
+     */
+    public int addTransactions(TransactionBatch batch) {
+        UTXOPool tipPool = materialize(activeBlocks.last());
+        int[] accepted = new TxHandler(tipPool).handleTxs(batch);
+        for (int tx : accepted)
+            pending.addTransaction(batch.getTransaction(tx), tipPool);
+        return accepted.length;
+    }
+
+    /**
+     * Check each added block on {@code pool}, in parallel: large blocks are split into groups of
+     * transactions that touch disjoint outputs, and the signatures of a block that cannot be
+     * split are verified in parallel. A null {@code pool} checks blocks serially.
+     */
+    public void setVerifierPool(ForkJoinPool pool) {
+        verifierPool = pool;
+    }
+
+    /** Get the pool signatures are verified on, or null if they are verified serially */
+    public ForkJoinPool getVerifierPool() {
+        return verifierPool;
+    }
+
+    /**
+     * Get a snapshot of the main chain: the UTXO pool of the block {@code CUT_OFF_AGE} below the
+     * max height block, or of the oldest block still kept, and the blocks from there up. Takes
+     * time proportional to the size of those blocks, not to the size of the UTXO pool, with the
+     * default UTXO store.
+     */
+    public ChainSnapshot getSnapshot() {
+        UTXOPool utxoPool = new UTXOPool(materialize(activeBlocks.last()));
+        ArrayList<Block> blocks = new ArrayList<>();
+        ActiveBlock b = activeBlocks.last();
+        while (true) {
+            blocks.add(b.block);
+            if (blocks.size() > CUT_OFF_AGE || b.parent == null) break;
+            b.undo.undo(utxoPool);
+            b = b.parent;
+        }
+        Collections.reverse(blocks);
+        return new ChainSnapshot(utxoPool, blocks);
+    }
+
+    /**
+     * Write a snapshot of the main chain to {@code file} every {@code interval} added blocks, on a
+     * background thread so that {@code addBlock} does not wait for it. A snapshot is skipped if
+     * the previous one is still being written. A null {@code file} stops writing snapshots. The
+     * UTXO store must keep copies valid while the chain moves on, as the default store does.
+     */
+    public void setSnapshotFile(File file, int interval) {
+        snapshotFile = file;
+        snapshotInterval = interval;
+        blocksSinceSnapshot = 0;
+    }
+
+    private void writeSnapshotInBackground() {
+        if (!snapshotting.compareAndSet(false, true)) return;
+        final ChainSnapshot snapshot = getSnapshot();
+        final File file = snapshotFile;
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    snapshot.write(file);
+                } catch (IOException x) {
+                    x.printStackTrace(System.err);
+                } finally {
+                    snapshotting.set(false);
+                }
+            }
+        }, "chain-snapshot").start();
+    }
+
+    /**
+     * Append the blocks trimmed from the chain to {@code store} instead of forgetting them, so that
+     * they and their transactions can still be looked up by hash. A null {@code store} forgets them.
+     */
+    public void setBlockStore(BlockStore store) {
+        blockStore = store;
+        if (store == null) unstored.clear();
+    }
+
+    /**
+     * Keep blocks whose parent is unknown in {@code pool} until the parent is added, instead of
+     * rejecting them. A null {@code pool} rejects them.
+     */
+    public void setOrphanPool(OrphanBlockPool pool) {
+        orphans = pool;
+    }
+
+    /** Get the pool blocks whose parent is unknown wait in, or null if they are rejected */
+    public OrphanBlockPool getOrphanPool() {
+        return orphans;
+    }
+
+    /** Get the store trimmed blocks are appended to, or null if they are forgotten */
+    public BlockStore getBlockStore() {
+        return blockStore;
     }
-}
\ No newline at end of file
+}
@@ -3,10 +3,25 @@ import java.security.PublicKey;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    private BlockAssembler assembler;
+    private BlockTemplate template;
 
-    /** assume blockChain has the genesis block */
+    /**
+     * assume blockChain has the genesis block. Blocks created by this handler hold the
+     * transactions of a template kept up to date by {@code processTx} and {@code processBlock}
+     */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
+        this.template = new BlockTemplate(blockChain);
+    }
+
+    /**
+     * assume blockChain has the genesis block. Blocks created by this handler are filled by
+     * ancestor-package fee rate, up to {@code maxBlockSize} bytes of transactions
+     */
+    public BlockHandler(BlockChain blockChain, int maxBlockSize) {
+        this.blockChain = blockChain;
+        this.assembler = new BlockAssembler(maxBlockSize);
     }
 
     /**
@@ -17,6 +32,8 @@ public class BlockHandler {
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
+        if (template != null)
+            return template.addBlock(block);
         return blockChain.addBlock(block);
     }
 
@@ -25,16 +42,23 @@ public class BlockHandler {
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
         Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
+        Transaction[] rTxs;
+        if (template != null) {
+            rTxs = template.getTransactions().toArray(new Transaction[0]);
+        } else {
+            UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+            TransactionPool txPool = blockChain.getTransactionPool();
+            Transaction[] txs = new Transaction[txPool.size()];
+            int n = 0;
+            for (Transaction tx : txPool.byFeeRate())
+                txs[n++] = tx;
+            rTxs = assembler.assemble(uPool, txs);
+        }
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
         current.finalize();
-        if (blockChain.addBlock(current))
+        if (processBlock(current))
             return current;
         else
             return null;
@@ -42,6 +66,9 @@ public class BlockHandler {
 
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+        if (template != null)
+            template.addTransaction(tx);
+        else
+            blockChain.addTransaction(tx);
     }
 }
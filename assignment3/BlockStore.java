@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of blocks on disk, for the blocks {@code BlockChain} no longer keeps in
+ * memory. Blocks are appended to segment files of at most {@code SEGMENT_SIZE} bytes, each record
+ * being the length and CRC32 of a {@code WireFormat} block followed by the block itself. Only an
+ * index from block and transaction hashes to their place in the log is kept on the heap; reads go
+ * through memory mappings of the segments.
+ *
+ * <p>
+ * Appends are synced in groups: the files are synced once {@code syncEvery} blocks have been
+ * appended since the last sync, on {@code sync} and {@code close}, and every {@code syncMillis}
+ * milliseconds by a background thread if anything is left unsynced, so no block waits longer
+ * than that even when no more follow it. Opening a directory rebuilds the index by scanning the segments
+ * and cuts off a record torn by a crash, so at most the blocks appended since the last sync are
+ * lost.
+ */
+public class BlockStore {
+
+    public static final int SEGMENT_SIZE = 64 << 20;
+    public static final int DEFAULT_SYNC_EVERY = 64;
+    public static final long DEFAULT_SYNC_MILLIS = 1000;
+
+    private static final int RECORD_HEADER = 8;
+
+    private File dir;
+    private int syncEvery;
+
+    private ArrayList<RandomAccessFile> segments = new ArrayList<RandomAccessFile>();
+    /** the mapping of each segment, remapped when the last one has grown past it */
+    private ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+    private long writePosition;
+
+    /** locations pack the segment in the high 24 bits and the offset in the low 40 */
+    private HashMap<ByteArrayWrapper, Long> blocks = new HashMap<ByteArrayWrapper, Long>();
+    private HashMap<ByteArrayWrapper, Long> transactions = new HashMap<ByteArrayWrapper, Long>();
+
+    private int unsynced;
+    private WireFormat format = new WireFormat();
+    private ScheduledExecutorService syncer;
+
+    /**
+     * Opens the store kept in directory {@code dir}, creating an empty one if there is none.
+     *
+     * @throws IOException if the files cannot be read or created
+     */
+    public BlockStore(File dir) throws IOException {
+        this(dir, DEFAULT_SYNC_EVERY, DEFAULT_SYNC_MILLIS);
+    }
+
+    public BlockStore(File dir, int syncEvery, long syncMillis) throws IOException {
+        this.dir = dir;
+        this.syncEvery = syncEvery;
+        dir.mkdirs();
+        for (int i = 0; segmentFile(i).exists(); i++) {
+            segments.add(new RandomAccessFile(segmentFile(i), "rw"));
+            mappings.add(null);
+            scan(i);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new RandomAccessFile(segmentFile(0), "rw"));
+            mappings.add(null);
+        }
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "block-store-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    syncQuietly();
+                }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Syncs the blocks appended since the last tick of the background thread */
+    private synchronized void syncQuietly() {
+        if (unsynced == 0) return;
+        try {
+            sync();
+        } catch (IOException x) {
+            // append syncs again, and reports the failure, once more blocks arrive
+            x.printStackTrace(System.err);
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("blocks-%05d.seg", segment));
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    /** Indexes the records of {@code segment}, cutting the file after the last complete one */
+    private void scan(int segment) throws IOException {
+        RandomAccessFile file = segments.get(segment);
+        ByteBuffer b = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        long offset = 0;
+        while (b.remaining() >= RECORD_HEADER) {
+            int length = b.getInt();
+            int crc = b.getInt();
+            if (length < 0 || length > b.remaining()) break;
+            ByteBuffer record = b.slice();
+            record.limit(length);
+            if (crc != checksum(record)) break;
+            try {
+                index(segment, offset, record);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException x) {
+                break;
+            }
+            offset += RECORD_HEADER + length;
+            b.position((int) offset);
+        }
+        if (offset < file.length()) file.setLength(offset);
+        writePosition = offset;
+    }
+
+    private static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /** Adds the block in {@code record}, written at {@code offset} of {@code segment}, to the index */
+    private void index(int segment, long offset, ByteBuffer record) {
+        ByteBuffer b = record.duplicate();
+        int length = b.getInt();
+        byte[] hash = new byte[length];
+        b.get(hash);
+        int prevLength = b.getInt();
+        if (prevLength > 0) b.position(b.position() + prevLength);
+        WireFormat.skipTransaction(b);
+        HashMap<ByteArrayWrapper, Long> txs = new HashMap<ByteArrayWrapper, Long>();
+        int numTxs = b.getInt();
+        for (int i = 0; i < numTxs; i++) {
+            long txOffset = offset + RECORD_HEADER + b.position();
+            byte[] txHash = WireFormat.skipTransaction(b);
+            if (txHash != null) txs.put(new ByteArrayWrapper(txHash), location(segment, txOffset));
+        }
+        blocks.put(new ByteArrayWrapper(hash), location(segment, offset + RECORD_HEADER));
+        transactions.putAll(txs);
+    }
+
+    /**
+     * Appends {@code block} to the log, unless it is already there
+     *
+     * @throws IOException if the block cannot be written
+     */
+    public synchronized void append(Block block) throws IOException {
+        if (blocks.containsKey(new ByteArrayWrapper(block.getHash()))) return;
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + WireFormat.sizeOf(block));
+        b.position(RECORD_HEADER);
+        WireFormat.put(b, block);
+        ByteBuffer record = ByteBuffer.wrap(b.array(), RECORD_HEADER, b.capacity() - RECORD_HEADER).slice();
+        b.putInt(0, record.remaining());
+        b.putInt(4, checksum(record));
+        b.clear();
+
+        if (writePosition > 0 && writePosition + b.remaining() > SEGMENT_SIZE) {
+            // the last segment is full: make it durable before starting the next one
+            segments.get(segments.size() - 1).getChannel().force(false);
+            segments.add(new RandomAccessFile(segmentFile(segments.size()), "rw"));
+            mappings.add(null);
+            writePosition = 0;
+        }
+        int segment = segments.size() - 1;
+        FileChannel channel = segments.get(segment).getChannel();
+        long offset = writePosition;
+        try {
+            while (b.hasRemaining())
+                writePosition += channel.write(b, writePosition);
+        } catch (IOException x) {
+            // a retry writes the record over what part of it got written
+            writePosition = offset;
+            throw x;
+        }
+        index(segment, offset, record);
+
+        unsynced++;
+        if (unsynced >= syncEvery) sync();
+    }
+
+    /**
+     * Makes every block appended so far durable
+     *
+     * @throws IOException if the files cannot be synced
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) segments.get(segments.size() - 1).getChannel().force(false);
+        unsynced = 0;
+    }
+
+    /** @return a view of the bytes at {@code location}, mapping the segment if needed */
+    private ByteBuffer at(long location) throws IOException {
+        int segment = (int) (location >>> 40);
+        int offset = (int) (location & ((1L << 40) - 1));
+        MappedByteBuffer mapping = mappings.get(segment);
+        if (mapping == null || mapping.capacity() <= offset) {
+            FileChannel channel = segments.get(segment).getChannel();
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mappings.set(segment, mapping);
+        }
+        ByteBuffer b = mapping.duplicate();
+        b.position(offset);
+        return b;
+    }
+
+    /** @return true if the block with hash {@code hash} is in the log */
+    public synchronized boolean containsBlock(byte[] hash) {
+        return blocks.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /**
+     * @return the block with hash {@code hash}, or null if it is not in the log
+     * @throws IOException if the segment cannot be read
+     */
+    public synchronized Block getBlock(byte[] hash) throws IOException {
+        Long location = blocks.get(new ByteArrayWrapper(hash));
+        return location == null ? null : format.getBlock(at(location));
+    }
+
+    /**
+     * Points {@code view} at the block with hash {@code hash} in the mapped segment, without
+     * copying it. The view stays valid after the store is closed, until the mapping is collected.
+     *
+     * @return {@code view}, or null if the block is not in the log
+     * @throws IOException if the segment cannot be mapped
+     */
+    public synchronized BlockView getBlockView(byte[] hash, BlockView view) throws IOException {
+        Long location = blocks.get(new ByteArrayWrapper(hash));
+        if (location == null) return null;
+        ByteBuffer b = at(location);
+        return view.wrap(b, b.position());
+    }
+
+    /**
+     * @return the transaction with hash {@code hash} from a block in the log, or null if there is
+     *         none
+     * @throws IOException if the segment cannot be read
+     */
+    public synchronized Transaction getTransaction(byte[] hash) throws IOException {
+        Long location = transactions.get(new ByteArrayWrapper(hash));
+        return location == null ? null : format.getTransaction(at(location));
+    }
+
+    /** @return the number of blocks in the log */
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     * Syncs and closes the files
+     *
+     * @throws IOException if the files cannot be synced or closed
+     */
+    public synchronized void close() throws IOException {
+        if (syncer != null) syncer.shutdown();
+        sync();
+        for (RandomAccessFile segment : segments)
+            segment.close();
+        mappings.clear();
+    }
+}
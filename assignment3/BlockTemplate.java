@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * The transactions of the next block to mine on top of the max height block, kept up to date as
+ * transactions and blocks arrive instead of being worked out again for every block. It holds the
+ * selected transactions in an order in which they are valid, and the UTXO pool of the tip with
+ * them applied.
+ *
+ * <p>
+ * A new transaction is checked against that pool alone. One whose input is missing waits for the
+ * output to appear, which happens when another transaction creates it or when the transaction
+ * spending it is dropped. A block on top of the tip only touches the selected transactions it
+ * confirms or conflicts with: confirmed ones leave the template, conflicting ones leave it with
+ * their descendants, and the block's other effects are applied to the pool. Anything else, such
+ * as a reorg or a change to the transaction pool made behind the template's back, makes it start
+ * over from the transaction pool.
+ */
+public class BlockTemplate {
+
+    private static class Entry {
+        Transaction tx;
+        /** the output each input spent, so that dropping the transaction can give them back */
+        Transaction.Output[] spent;
+    }
+
+    private BlockChain blockChain;
+
+    private byte[] baseHash;
+    /** the version of the transaction pool the template follows */
+    private long txPoolVersion;
+
+    /** checks transactions against the pool of the tip with {@code selected} applied */
+    private TxHandler handler;
+    private LinkedHashMap<ByteArrayWrapper, Entry> selected;
+    private HashMap<UTXO, Entry> spentBy;
+    private HashMap<UTXO, ArrayList<Transaction>> waiting;
+
+    public BlockTemplate(BlockChain blockChain) {
+        this.blockChain = blockChain;
+        rebuild();
+    }
+
+    /** Starts over from the max height block and the transaction pool */
+    private void rebuild() {
+        Block tip = blockChain.getMaxHeightBlock();
+        baseHash = tip.getHash();
+        handler = new TxHandler(blockChain.getMaxHeightUTXOPool());
+        selected = new LinkedHashMap<>();
+        spentBy = new HashMap<>();
+        waiting = new HashMap<>();
+        TransactionPool txPool = blockChain.getTransactionPool();
+        for (Transaction tx : txPool.byFeeRate())
+            add(tx);
+        txPoolVersion = txPool.getVersion();
+    }
+
+    /**
+     * @return true if the template still describes the chain and its transaction pool, which
+     *         fails once either changed other than through this template. The pool is known by
+     *         its version, which copies of it share, so a chain that hands out copies of its
+     *         pool keeps the template current.
+     */
+    private boolean current() {
+        return blockChain.getTransactionPoolVersion() == txPoolVersion
+                && Arrays.equals(blockChain.getMaxHeightBlock().getHash(), baseHash);
+    }
+
+    /**
+     * Adds {@code tx} to the transaction pool of the chain, and to the template if it is valid
+     * there. A bounded pool may evict transactions to make room, {@code tx} among them, in which
+     * case the template starts over.
+     */
+    public void addTransaction(Transaction tx) {
+        boolean wasCurrent = current();
+        TransactionPool txPool = blockChain.getTransactionPool();
+        int expected = txPool.size() + (txPool.getTransaction(tx.getHash()) == null ? 1 : 0);
+        blockChain.addTransaction(tx);
+        if (!wasCurrent) return;
+        txPool = blockChain.getTransactionPool();
+        if (txPool.size() != expected || txPool.getTransaction(tx.getHash()) == null) {
+            rebuild();
+            return;
+        }
+        add(tx);
+        txPoolVersion = blockChain.getTransactionPoolVersion();
+    }
+
+    /**
+     * Adds {@code block} to the chain, moving the template on top of it if it becomes the max
+     * height block
+     *
+     * @return true if the block was added
+     */
+    public boolean addBlock(Block block) {
+        boolean wasCurrent = current();
+        if (!blockChain.addBlock(block)) return false;
+        if (!wasCurrent) return true;
+        if (Arrays.equals(blockChain.getMaxHeightBlock().getHash(), baseHash)) {
+            // a block on a fork, which leaves the tip and its transaction pool alone
+            txPoolVersion = blockChain.getTransactionPoolVersion();
+        } else if (Arrays.equals(blockChain.getMaxHeightBlock().getHash(), block.getHash())
+                && Arrays.equals(block.getPrevBlockHash(), baseHash)) {
+            connect(block);
+            baseHash = block.getHash();
+            // the chain dropped the confirmed and conflicting transactions from its pool too
+            txPoolVersion = blockChain.getTransactionPoolVersion();
+        }
+        // otherwise current() no longer holds, and the template starts over when next read
+        return true;
+    }
+
+    /** @return the transactions to put in the next block, in an order in which they are valid */
+    public ArrayList<Transaction> getTransactions() {
+        if (!current()) rebuild();
+        ArrayList<Transaction> txs = new ArrayList<>(selected.size());
+        for (Entry e : selected.values())
+            txs.add(e.tx);
+        return txs;
+    }
+
+    /** Selects {@code tx} if it is valid on the template, or lets it wait for a missing input */
+    private void add(Transaction tx) {
+        if (tx.getHash() == null || selected.containsKey(new ByteArrayWrapper(tx.getHash()))) return;
+        UTXOPool pool = handler.getUTXOPool();
+        if (!handler.isValidTx(tx)) {
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null) return;
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                if (pool.contains(utxo)) continue;
+                if (!waiting.containsKey(utxo)) waiting.put(utxo, new ArrayList<Transaction>());
+                waiting.get(utxo).add(tx);
+                return;
+            }
+            return;
+        }
+
+        Entry e = new Entry();
+        e.tx = tx;
+        e.spent = new Transaction.Output[tx.numInputs()];
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            Transaction.Input in = tx.getInput(i);
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            e.spent[i] = pool.getTxOutput(utxo);
+            pool.removeUTXO(utxo);
+            spentBy.put(utxo, e);
+        }
+        selected.put(new ByteArrayWrapper(tx.getHash()), e);
+        for (int i = 0; i < tx.numOutputs(); ++i)
+            created(new UTXO(tx.getHash(), i), tx.getOutput(i));
+    }
+
+    /** Puts {@code utxo} in the pool and retries the transactions waiting for it */
+    private void created(UTXO utxo, Transaction.Output txOut) {
+        handler.getUTXOPool().addUTXO(utxo, txOut);
+        retry(utxo);
+    }
+
+    private void retry(UTXO utxo) {
+        ArrayList<Transaction> dependants = waiting.remove(utxo);
+        if (dependants == null) return;
+        for (Transaction tx : dependants)
+            add(tx);
+    }
+
+    /** Drops {@code e} and every selected transaction spending its outputs, undoing their effects */
+    private void drop(Entry e) {
+        ArrayList<Entry> doomed = new ArrayList<>();
+        collect(e, doomed, new HashSet<Entry>());
+
+        // descendants first, so that each gives back outputs its parent then takes away
+        UTXOPool pool = handler.getUTXOPool();
+        ArrayList<UTXO> freed = new ArrayList<>();
+        for (Entry d : doomed) {
+            selected.remove(new ByteArrayWrapper(d.tx.getHash()));
+            for (int i = 0; i < d.tx.numOutputs(); ++i)
+                pool.removeUTXO(new UTXO(d.tx.getHash(), i));
+            for (int i = 0; i < d.tx.numInputs(); ++i) {
+                Transaction.Input in = d.tx.getInput(i);
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                spentBy.remove(utxo);
+                pool.addUTXO(utxo, d.spent[i]);
+                freed.add(utxo);
+            }
+        }
+        for (UTXO utxo : freed) {
+            if (pool.contains(utxo)) retry(utxo);
+        }
+    }
+
+    /** Lists {@code e} after the selected transactions spending its outputs, recursively */
+    private void collect(Entry e, ArrayList<Entry> doomed, HashSet<Entry> seen) {
+        if (!seen.add(e)) return;
+        for (int i = 0; i < e.tx.numOutputs(); ++i) {
+            Entry child = spentBy.get(new UTXO(e.tx.getHash(), i));
+            if (child != null) collect(child, doomed, seen);
+        }
+        doomed.add(e);
+    }
+
+    /** Moves the template on top of {@code block}, a child of its base */
+    private void connect(Block block) {
+        ArrayList<Transaction> unselected = new ArrayList<>();
+        for (Transaction tx : block.getTransactions()) {
+            Entry e = selected.remove(new ByteArrayWrapper(tx.getHash()));
+            if (e == null) {
+                unselected.add(tx);
+                continue;
+            }
+            // confirmed: its effects are already in the pool, and its inputs are gone for good
+            for (Transaction.Input in : tx.getInputs())
+                spentBy.remove(new UTXO(in.prevTxHash, in.outputIndex));
+        }
+
+        // outputs first, since a transaction of the block may spend another one's
+        UTXOPool pool = handler.getUTXOPool();
+        for (Transaction tx : unselected) {
+            for (int i = 0; i < tx.numOutputs(); ++i)
+                created(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        for (Transaction tx : unselected) {
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                // dropping a conflict may select a waiting transaction that spends it again
+                for (Entry conflict = spentBy.get(utxo); conflict != null; conflict = spentBy.get(utxo))
+                    drop(conflict);
+                pool.removeUTXO(utxo);
+                waiting.remove(utxo);
+            }
+        }
+        Transaction coinbase = block.getCoinbase();
+        for (int i = 0; i < coinbase.numOutputs(); ++i)
+            created(new UTXO(coinbase.getHash(), i), coinbase.getOutput(i));
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that every transaction of a block is valid, splitting large blocks into groups that can
+ * be checked at the same time. Two transactions land in the same group when they touch a common
+ * output, as one spending what the other creates or as both spending it, so every double spend
+ * and every dependency stays inside one group. Groups share no output, so each is checked with
+ * its own {@code TxHandler} on its own copy of the pool and a block is accepted exactly when
+ * checking all of it with one {@code TxHandler} would accept every transaction.
+ */
+public class BlockValidator {
+
+    /** blocks with fewer transactions than this are checked by one handler */
+    public static final int THRESHOLD = 64;
+
+    private ForkJoinPool pool;
+
+    /** Creates a validator that checks groups on {@code pool}, or serially if it is null */
+    public BlockValidator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return a new pool holding {@code utxoPool} after every transaction of {@code txs}, or null
+     *         if any of them is invalid
+     */
+    public UTXOPool validate(UTXOPool utxoPool, Transaction[] txs) {
+        ArrayList<ArrayList<Transaction>> groups = pool == null || txs.length < THRESHOLD ? null : group(txs);
+        if (groups == null || groups.size() == 1) {
+            TxHandler txHandler = new TxHandler(utxoPool);
+            txHandler.setVerifierPool(pool);
+            if (txHandler.handleTxs(txs).length < txs.length) return null;
+            return txHandler.getUTXOPool();
+        }
+
+        // pack small groups together so that each task is worth scheduling
+        int chunkSize = Math.max(THRESHOLD / 4, txs.length / (pool.getParallelism() * 4));
+        ArrayList<ArrayList<Transaction>> chunks = new ArrayList<>();
+        ArrayList<Transaction> chunk = new ArrayList<>();
+        for (ArrayList<Transaction> group : groups) {
+            chunk.addAll(group);
+            if (chunk.size() >= chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) chunks.add(chunk);
+
+        // copying a pool is not safe while another thread copies it, so copy it here
+        ChunkTask[] tasks = new ChunkTask[chunks.size()];
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < tasks.length; ++i) {
+            tasks[i] = new ChunkTask(new TxHandler(utxoPool), chunks.get(i).toArray(new Transaction[0]), failed);
+        }
+        pool.invoke(new AllTask(tasks));
+        if (failed.get()) return null;
+
+        // replay each chunk in the order it was accepted; chunks touch disjoint outputs
+        UTXOPool result = new UTXOPool(utxoPool);
+        for (ChunkTask task : tasks) {
+            for (Transaction tx : task.accepted) {
+                for (Transaction.Input in : tx.getInputs()) {
+                    result.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+                }
+                for (int i = 0; i < tx.numOutputs(); ++i) {
+                    result.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code txs} split into groups that touch disjoint outputs, each in block order, or
+     *         null if a transaction or one of its inputs has no hash
+     */
+    private static ArrayList<ArrayList<Transaction>> group(Transaction[] txs) {
+        int[] parent = new int[txs.length];
+        HashMap<UTXO, Integer> toucher = new HashMap<>();
+        for (int t = 0; t < txs.length; ++t) {
+            parent[t] = t;
+            Transaction tx = txs[t];
+            if (tx.getHash() == null) return null;
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null) return null;
+                union(parent, t, toucher, new UTXO(in.prevTxHash, in.outputIndex));
+            }
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                union(parent, t, toucher, new UTXO(tx.getHash(), i));
+            }
+        }
+
+        LinkedHashMap<Integer, ArrayList<Transaction>> groups = new LinkedHashMap<>();
+        for (int t = 0; t < txs.length; ++t) {
+            int root = find(parent, t);
+            if (!groups.containsKey(root)) groups.put(root, new ArrayList<Transaction>());
+            groups.get(root).add(txs[t]);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static void union(int[] parent, int t, HashMap<UTXO, Integer> toucher, UTXO utxo) {
+        Integer other = toucher.putIfAbsent(utxo, t);
+        if (other == null) return;
+        int a = find(parent, t), b = find(parent, other);
+        if (a != b) parent[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    private static int find(int[] parent, int t) {
+        while (parent[t] != t) {
+            parent[t] = parent[parent[t]];
+            t = parent[t];
+        }
+        return t;
+    }
+
+    /** Runs its tasks in parallel, inside the pool */
+    private static class AllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private ChunkTask[] tasks;
+
+        AllTask(ChunkTask[] tasks) {
+            this.tasks = tasks;
+        }
+
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private TxHandler txHandler;
+        private Transaction[] txs;
+        private AtomicBoolean failed;
+        Transaction[] accepted;
+
+        ChunkTask(TxHandler txHandler, Transaction[] txs, AtomicBoolean failed) {
+            this.txHandler = txHandler;
+            this.txs = txs;
+            this.failed = failed;
+        }
+
+        protected void compute() {
+            // once a chunk is rejected so is the block, and the rest need not be checked
+            if (failed.get()) return;
+            accepted = txHandler.handleTxs(txs);
+            if (accepted.length < txs.length) failed.set(true);
+        }
+    }
+}
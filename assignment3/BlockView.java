@@ -0,0 +1,118 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a block in {@code WireFormat}, the block counterpart of
+ * {@code TransactionView}. {@code wrap} finds where each transaction starts, and
+ * {@code getTransaction} points a caller's view at one of them, so reading every transaction of a
+ * block needs a single {@code TransactionView} and no decoding beyond what the caller asks for.
+ *
+ * <p>
+ * The hash recorded in the encoding is returned as is; it is only as trustworthy as the bytes.
+ */
+public class BlockView {
+
+    private ByteBuffer b;
+    private int offset;
+    private int size;
+    private int coinbase;
+    private int numTransactions;
+    /** where each transaction other than the coinbase starts */
+    private int[] transactions = new int[16];
+    /** the array {@code wrap} fills, swapped with the one above once it succeeds */
+    private int[] spareTransactions = new int[16];
+    private TransactionView scratch = new TransactionView();
+
+    /**
+     * Points this view at the block at {@code offset} of {@code b}, whose position and limit are
+     * left alone
+     *
+     * @return this view
+     * @throws IllegalArgumentException if the bytes are not a block, in which case the view is
+     *         left as it was
+     */
+    public BlockView wrap(ByteBuffer b, int offset) {
+        ByteBuffer d = b.duplicate();
+        try {
+            d.position(offset);
+            skipBytes(d);
+            skipBytes(d);
+            int coinbase = d.position();
+            if (!scratch.wrap(b, coinbase).isCoinbase()) throw new IllegalArgumentException("block without coinbase");
+            d.position(coinbase + scratch.size());
+            int numTransactions = d.getInt();
+            if (numTransactions < 0 || numTransactions > d.remaining() / TransactionView.MIN_SIZE)
+                throw new IllegalArgumentException("bad transaction count " + numTransactions);
+            int[] transactions = spareTransactions;
+            if (transactions.length < numTransactions) transactions = new int[Math.max(numTransactions, 2 * transactions.length)];
+            int at = d.position();
+            for (int i = 0; i < numTransactions; i++) {
+                transactions[i] = at;
+                at += scratch.wrap(b, at).size();
+            }
+            spareTransactions = this.transactions;
+            this.transactions = transactions;
+            this.b = b;
+            this.offset = offset;
+            this.size = at - offset;
+            this.coinbase = coinbase;
+            this.numTransactions = numTransactions;
+            return this;
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated block", x);
+        }
+    }
+
+    private static void skipBytes(ByteBuffer d) {
+        int length = d.getInt();
+        if (length < -1 || length > d.remaining()) throw new IllegalArgumentException("bad length " + length);
+        if (length > 0) d.position(d.position() + length);
+    }
+
+    private byte[] bytesAt(int at) {
+        int length = b.getInt(at);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(at + 4);
+        d.get(bytes);
+        return bytes;
+    }
+
+    /** @return the number of bytes the block takes in the buffer */
+    public int size() {
+        return size;
+    }
+
+    public byte[] getHash() {
+        return bytesAt(offset);
+    }
+
+    public byte[] getPrevBlockHash() {
+        return bytesAt(offset + 4 + Math.max(0, b.getInt(offset)));
+    }
+
+    /**
+     * Points {@code tx} at the coinbase of the block
+     *
+     * @return {@code tx}
+     */
+    public TransactionView getCoinbase(TransactionView tx) {
+        return tx.wrap(b, coinbase);
+    }
+
+    /** @return the number of transactions in the block, not counting the coinbase */
+    public int numTransactions() {
+        return numTransactions;
+    }
+
+    /**
+     * Points {@code tx} at transaction {@code index} of the block
+     *
+     * @return {@code tx}
+     */
+    public TransactionView getTransaction(int index, TransactionView tx) {
+        if (index < 0 || index >= numTransactions) throw new IndexOutOfBoundsException("transaction " + index);
+        return tx.wrap(b, transactions[index]);
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The state a {@code BlockChain} needs to start again without replaying the chain from genesis:
+ * the UTXO pool of a base block, followed by the blocks of the main chain from the base block up
+ * to the tip. The base block is {@code CUT_OFF_AGE} blocks below the tip, so a restored chain
+ * accepts the same new blocks on the main chain as the one it was taken from.
+ *
+ * <p>
+ * A snapshot file holds every distinct address once, in X.509 encoding, then each UTXO as its
+ * transaction hash, output index, value and address id, then the blocks in {@code WireFormat},
+ * and ends with a CRC32 of everything before it. Files are written under a temporary name and
+ * renamed into place, so a crash never leaves a partial snapshot behind.
+ */
+public class ChainSnapshot {
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 1;
+
+    /** the owner of every output read from a snapshot */
+    private static final Transaction decoded = new Transaction();
+
+    private UTXOPool utxoPool;
+    private ArrayList<Block> blocks;
+    private long loadNanos;
+
+    /** {@code utxoPool} is the pool of {@code blocks.get(0)}, the other blocks its descendants in order */
+    public ChainSnapshot(UTXOPool utxoPool, List<Block> blocks) {
+        this.utxoPool = utxoPool;
+        this.blocks = new ArrayList<Block>(blocks);
+    }
+
+    /** @return the UTXO pool of the base block */
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
+
+    /** @return the base block followed by the main chain up to the tip */
+    public ArrayList<Block> getBlocks() {
+        return blocks;
+    }
+
+    /** @return how long {@code read} took to load this snapshot, or 0 if it was not read */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * Writes the snapshot to {@code file}, replacing it atomically
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
+            // file ids by encoded address
+            HashMap<ByteArrayWrapper, Integer> addressIds = new HashMap<ByteArrayWrapper, Integer>();
+            ArrayList<byte[]> addresses = new ArrayList<byte[]>();
+            int[] ids = new int[utxos.size()];
+            for (int i = 0; i < ids.length; i++) {
+                Transaction.Output txOut = utxoPool.getTxOutput(utxos.get(i));
+                ids[i] = -1;
+                if (txOut.address == null) continue;
+                ByteArrayWrapper encoded = new ByteArrayWrapper(txOut.getEncodedAddress());
+                Integer id = addressIds.get(encoded);
+                if (id == null) {
+                    id = addresses.size();
+                    addresses.add(txOut.getEncodedAddress());
+                    addressIds.put(encoded, id);
+                }
+                ids[i] = id;
+            }
+
+            out.writeInt(addresses.size());
+            for (byte[] encoded : addresses) {
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            out.writeInt(utxos.size());
+            for (int i = 0; i < ids.length; i++) {
+                UTXO utxo = utxos.get(i);
+                out.writeInt(utxo.getTxHash().length);
+                out.write(utxo.getTxHash());
+                out.writeInt(utxo.getIndex());
+                out.writeDouble(utxoPool.getTxOutput(utxo).value);
+                out.writeInt(ids[i]);
+            }
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                byte[] encoded = WireFormat.encode(block);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot in {@code file} into a pool backed by {@code store}, in time proportional
+     * to the size of the file
+     *
+     * @throws IOException if the file cannot be read or is not a complete snapshot
+     */
+    public static ChainSnapshot read(File file, UTXOStore store) throws IOException {
+        long start = System.nanoTime();
+        KeyFactory keyFactory;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a snapshot: " + file);
+
+            PublicKey[] addresses = new PublicKey[in.readInt()];
+            for (int i = 0; i < addresses.length; i++) {
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                try {
+                    addresses[i] = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+                } catch (InvalidKeySpecException x) {
+                    throw new IOException("corrupt address " + i, x);
+                }
+            }
+
+            UTXOPool utxoPool = new UTXOPool(store);
+            int numUTXOs = in.readInt();
+            for (int i = 0; i < numUTXOs; i++) {
+                byte[] txHash = new byte[in.readInt()];
+                in.readFully(txHash);
+                int index = in.readInt();
+                double value = in.readDouble();
+                int addressId = in.readInt();
+                utxoPool.addUTXO(new UTXO(txHash, index), decoded.new Output(value, addressId < 0 ? null : addresses[addressId]));
+            }
+
+            WireFormat format = new WireFormat();
+            ArrayList<Block> blocks = new ArrayList<Block>();
+            int numBlocks = in.readInt();
+            for (int i = 0; i < numBlocks; i++) {
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                blocks.add(format.getBlock(ByteBuffer.wrap(encoded)));
+            }
+
+            int crc = (int) checked.getChecksum().getValue();
+            if (in.readInt() != crc) throw new IOException("corrupt snapshot: " + file);
+            if (blocks.isEmpty()) throw new IOException("snapshot without blocks: " + file);
+
+            ChainSnapshot snapshot = new ChainSnapshot(utxoPool, blocks);
+            snapshot.loadNanos = System.nanoTime() - start;
+            return snapshot;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException x) {
+            throw new IOException("corrupt snapshot: " + file, x);
+        } finally {
+            in.close();
+        }
+    }
+}
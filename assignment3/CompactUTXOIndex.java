@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A UTXO store kept in parallel primitive arrays with open addressing. Each slot holds a 32-byte
+ * transaction hash as four longs, the output index, the cached hash code of the pair and the
+ * output itself, so an entry costs a few dozen bytes instead of the handful of objects a
+ * {@code HashMap<UTXO, Transaction.Output>} entry needs. Hashes that are not 32 bytes long, which
+ * SHA-256 never produces, are kept in a plain map on the side.
+ *
+ * <p>
+ * Copies are full copies of the arrays, so this store suits a single long-lived pool better than
+ * the short-lived copies {@code TxHandler} makes; use {@code PersistentUTXOMap} for those.
+ */
+public class CompactUTXOIndex implements UTXOStore {
+
+    private static final int HASH_LENGTH = 32;
+    private static final int WORDS = HASH_LENGTH / 8;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private long[] keys;
+    private int[] indexes;
+    private int[] hashes;
+    private byte[] states;
+    private Transaction.Output[] values;
+
+    /** number of FULL slots */
+    private int size;
+    /** number of DELETED slots, which still lengthen probe sequences */
+    private int deleted;
+
+    private HashMap<UTXO, Transaction.Output> others;
+
+    /** Creates an empty index */
+    public CompactUTXOIndex() {
+        this(16);
+    }
+
+    /** Creates an empty index with room for about {@code expectedSize} UTXOs before it grows */
+    public CompactUTXOIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+        others = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private CompactUTXOIndex(CompactUTXOIndex index) {
+        keys = index.keys.clone();
+        indexes = index.indexes.clone();
+        hashes = index.hashes.clone();
+        states = index.states.clone();
+        values = index.values.clone();
+        size = index.size;
+        deleted = index.deleted;
+        others = new HashMap<UTXO, Transaction.Output>(index.others);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * WORDS];
+        indexes = new int[capacity];
+        hashes = new int[capacity];
+        states = new byte[capacity];
+        values = new Transaction.Output[capacity];
+        size = 0;
+        deleted = 0;
+    }
+
+    private static long word(byte[] txHash, int w) {
+        long v = 0;
+        for (int i = w * 8; i < w * 8 + 8; i++)
+            v = (v << 8) | (txHash[i] & 0xff);
+        return v;
+    }
+
+    private static int hash(byte[] txHash, int index) {
+        // SHA-256 output is uniform, so its first word is as good as any mix of all four
+        long first = word(txHash, 0);
+        int h = (int) (first ^ (first >>> 32)) * 31 + index;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the slot holding {@code (txHash, index)}, or -1 */
+    private int find(byte[] txHash, int index, int hash) {
+        int mask = states.length - 1;
+        long w0 = word(txHash, 0), w1 = word(txHash, 1), w2 = word(txHash, 2), w3 = word(txHash, 3);
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            byte state = states[slot];
+            if (state == EMPTY)
+                return -1;
+            if (state == FULL && hashes[slot] == hash && indexes[slot] == index) {
+                int k = slot * WORDS;
+                if (keys[k] == w0 && keys[k + 1] == w1 && keys[k + 2] == w2 && keys[k + 3] == w3)
+                    return slot;
+            }
+        }
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash.length != HASH_LENGTH)
+            return others.get(new UTXO(txHash, index));
+        int slot = find(txHash, index, hash(txHash, index));
+        return slot < 0 ? null : values[slot];
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash.length != HASH_LENGTH)
+            return others.containsKey(new UTXO(txHash, index));
+        return find(txHash, index, hash(txHash, index)) >= 0;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        int index = utxo.getIndex();
+        if (txHash.length != HASH_LENGTH) {
+            others.put(utxo, txOut);
+            return;
+        }
+        int hash = hash(txHash, index);
+        int slot = find(txHash, index, hash);
+        if (slot >= 0) {
+            values[slot] = txOut;
+            return;
+        }
+        if ((size + deleted + 1) * 4 > states.length * 3)
+            rehash(size + 1 > states.length / 2 ? states.length * 2 : states.length);
+
+        int mask = states.length - 1;
+        slot = hash & mask;
+        while (states[slot] == FULL)
+            slot = (slot + 1) & mask;
+        if (states[slot] == DELETED)
+            deleted--;
+        int k = slot * WORDS;
+        for (int w = 0; w < WORDS; w++)
+            keys[k + w] = word(txHash, w);
+        indexes[slot] = index;
+        hashes[slot] = hash;
+        states[slot] = FULL;
+        values[slot] = txOut;
+        size++;
+    }
+
+    public void remove(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH) {
+            others.remove(utxo);
+            return;
+        }
+        int slot = find(txHash, utxo.getIndex(), hash(txHash, utxo.getIndex()));
+        if (slot < 0)
+            return;
+        states[slot] = DELETED;
+        values[slot] = null;
+        size--;
+        deleted++;
+    }
+
+    /** Moves every entry into fresh arrays of {@code capacity} slots, dropping the DELETED ones */
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldIndexes = indexes;
+        int[] oldHashes = hashes;
+        byte[] oldStates = states;
+        Transaction.Output[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int old = 0; old < oldStates.length; old++) {
+            if (oldStates[old] != FULL)
+                continue;
+            int slot = oldHashes[old] & mask;
+            while (states[slot] == FULL)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldKeys, old * WORDS, keys, slot * WORDS, WORDS);
+            indexes[slot] = oldIndexes[old];
+            hashes[slot] = oldHashes[old];
+            states[slot] = FULL;
+            values[slot] = oldValues[old];
+            size++;
+        }
+    }
+
+    public int size() {
+        return size + others.size();
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(size());
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int slot = 0; slot < states.length; slot++) {
+            if (states[slot] != FULL)
+                continue;
+            for (int w = 0; w < WORDS; w++) {
+                long v = keys[slot * WORDS + w];
+                for (int i = 7; i >= 0; i--) {
+                    txHash[w * 8 + i] = (byte) v;
+                    v >>>= 8;
+                }
+            }
+            all.add(new UTXO(txHash, indexes[slot]));
+        }
+        all.addAll(others.keySet());
+        return all;
+    }
+
+    public CompactUTXOIndex copy() {
+        return new CompactUTXOIndex(this);
+    }
+
+    public void commit() {
+        // kept on the heap only, there is nothing to make durable
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A block chain that many threads can read while one thread at a time adds blocks and
+ * transactions. Writers take the lock of the chain and change its state as {@code BlockChain}
+ * does, then publish an immutable view of the tip through an atomic reference: the max height
+ * block, its UTXO pool and a snapshot of the transaction pool, all three from the same moment.
+ * {@code getTip} returns that view without locking, so it never waits for {@code addBlock}.
+ * {@code getMaxHeightBlock}, {@code getMaxHeightUTXOPool} and {@code getTransactionPool} each
+ * read the latest view too, so two calls may see different tips; a reader that needs them to
+ * agree reads them from one {@code Tip}.
+ *
+ * <p>
+ * Publishing takes O(1) amortized time: the snapshot of the transaction pool is built by the
+ * first reader that asks for it, and the UTXO pool of a view is an O(1) copy, frozen so that
+ * readers can copy it in turn without writing to it. The default UTXO store is the only one
+ * this class supports.
+ */
+public class ConcurrentBlockChain extends BlockChain {
+
+    /**
+     * The max height block, its UTXO pool and the transaction pool, all three from the same moment.
+     * Never modified once published: the UTXO pool is frozen, and the transaction pool is shared
+     * between readers and must not be modified either.
+     */
+    public static class Tip {
+        private final Block block;
+        private final UTXOPool utxoPool;
+        private final TransactionPool.Snapshot txPool;
+
+        private Tip(Block block, UTXOPool utxoPool, TransactionPool.Snapshot txPool) {
+            this.block = block;
+            this.utxoPool = utxoPool;
+            this.txPool = txPool;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        /** @return the frozen UTXO pool of the block, which can be copied but not modified */
+        public UTXOPool getUTXOPool() {
+            return utxoPool;
+        }
+
+        /** @return the transaction pool, built by the first reader that asks for it */
+        public TransactionPool getTransactionPool() {
+            return txPool.get();
+        }
+
+        public long getTransactionPoolVersion() {
+            return txPool.getVersion();
+        }
+    }
+
+    private AtomicReference<Tip> tip;
+
+    public ConcurrentBlockChain(Block genesisBlock) {
+        super(genesisBlock);
+        tip = new AtomicReference<Tip>();
+        publish();
+    }
+
+    public ConcurrentBlockChain(ChainSnapshot snapshot) {
+        super(snapshot);
+        tip = new AtomicReference<Tip>();
+        publish();
+    }
+
+    /** Publishes the current state; does nothing while the superclass constructor runs */
+    private void publish() {
+        if (tip == null) return;
+        UTXOPool utxoPool = super.getMaxHeightUTXOPool();
+        utxoPool.freeze();
+        tip.set(new Tip(super.getMaxHeightBlock(), utxoPool, super.getTransactionPool().snapshot()));
+    }
+
+    /** @return the tip as last published, without locking */
+    public Tip getTip() {
+        return tip.get();
+    }
+
+    /** Get the maximum height block, without locking */
+    public Block getMaxHeightBlock() {
+        return tip.get().getBlock();
+    }
+
+    /** Get a copy of the UTXOPool of the max height block, without locking */
+    public UTXOPool getMaxHeightUTXOPool() {
+        return new UTXOPool(tip.get().getUTXOPool());
+    }
+
+    /**
+     * Get the transaction pool as of the last block or transaction added, without waiting for
+     * writers; the first reader after a change builds it. It is shared between readers and must
+     * not be modified; {@code addTransaction} changes the chain's own pool.
+     */
+    public TransactionPool getTransactionPool() {
+        return tip.get().getTransactionPool();
+    }
+
+    /** Get the version of the transaction pool {@code getTransactionPool} returns, without building it */
+    public long getTransactionPoolVersion() {
+        return tip.get().getTransactionPoolVersion();
+    }
+
+    public synchronized boolean addBlock(Block block, Object source) {
+        boolean added = super.addBlock(block, source);
+        if (added) publish();
+        return added;
+    }
+
+    public synchronized void addTransaction(Transaction tx) {
+        super.addTransaction(tx);
+        publish();
+    }
+
+    /** Add every transaction of {@code txs} to the transaction pool, publishing once */
+    public synchronized void addTransactions(Collection<Transaction> txs) {
+        for (Transaction tx : txs)
+            super.addTransaction(tx);
+        publish();
+    }
+
+    public synchronized int addTransactions(TransactionBatch batch) {
+        int added = super.addTransactions(batch);
+        publish();
+        return added;
+    }
+
+    public synchronized void setTransactionPoolLimits(int maxCount, long maxBytes) {
+        super.setTransactionPoolLimits(maxCount, maxBytes);
+        publish();
+    }
+
+    public synchronized ChainSnapshot getSnapshot() {
+        return super.getSnapshot();
+    }
+
+    public synchronized void setVerifierPool(ForkJoinPool pool) {
+        super.setVerifierPool(pool);
+    }
+
+    public synchronized void setSnapshotFile(File file, int interval) {
+        super.setSnapshotFile(file, interval);
+    }
+
+    public synchronized void setBlockStore(BlockStore store) {
+        super.setBlockStore(store);
+    }
+
+    public synchronized void setOrphanPool(OrphanBlockPool pool) {
+        super.setOrphanPool(pool);
+    }
+}
@@ -1,11 +1,75 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Crypto {
 
+    /** number of initialised verifiers each thread keeps for its most recently used keys */
+    public static final int VERIFIERS_PER_THREAD = 256;
+
+    /**
+     * Each thread keeps its own {@code Signature} objects, already initialised for verification
+     * with the interned keys it has seen most recently, by their id in the shared
+     * {@code AddressTable}. {@code verify} resets a {@code Signature} to its freshly initialised
+     * state, so it can be reused for the same key without calling {@code initVerify} again.
+     */
+    private static final ThreadLocal<LinkedHashMap<Integer, Signature>> verifiers =
+            new ThreadLocal<LinkedHashMap<Integer, Signature>>() {
+                protected LinkedHashMap<Integer, Signature> initialValue() {
+                    return new LinkedHashMap<Integer, Signature>(16, 0.75f, true) {
+                        protected boolean removeEldestEntry(Map.Entry<Integer, Signature> eldest) {
+                            return size() > VERIFIERS_PER_THREAD;
+                        }
+                    };
+                }
+            };
+
+    /** each thread's SHA-256 digest, since getting one from the provider costs more than small hashes do */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    /**
+     * @return this thread's SHA-256 digest, reset. It is shared by every caller on the thread, so
+     *         it must not be held across a call that may hash something else.
+     */
+    public static MessageDigest sha256() {
+        MessageDigest md = digests.get();
+        md.reset();
+        return md;
+    }
+
+    /** @return the SHA-256 hash of {@code data} */
+    public static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    /** a message, the signature claimed for it and the key it should verify under */
+    public static class SignedMessage {
+        public PublicKey pubKey;
+        public byte[] message;
+        public byte[] signature;
+
+        public SignedMessage(PublicKey pubKey, byte[] message, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +77,89 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
+        if (pubKey == null)
+            return false;
+        int addressId = AddressTable.getShared().getId(pubKey);
+        if (addressId >= 0)
+            return verifySignature(addressId, message, signature);
+        // a key no UTXO pool holds gets a verifier of its own, which is not kept
         try {
-            sig = Signature.getInstance("SHA256withRSA");
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(pubKey);
+            sig.update(message);
+            return sig.verify(signature);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
         } catch (InvalidKeyException e) {
             e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
         }
+        return false;
+    }
+
+    /**
+     * Same as {@code verifySignature(pubKey, ...)} for the key with id {@code addressId} in the
+     * shared {@code AddressTable}
+     */
+    public static boolean verifySignature(int addressId, byte[] message, byte[] signature) {
+        Signature sig = getVerifier(addressId);
+        if (sig == null)
+            return false;
+        boolean reusable = false;
         try {
             sig.update(message);
-            return sig.verify(signature);
+            boolean valid = sig.verify(signature);
+            reusable = true;
+            return valid;
         } catch (SignatureException e) {
             e.printStackTrace();
+        } finally {
+            // a verifier that failed half way through may still hold part of the message
+            if (!reusable)
+                verifiers.get().remove(addressId);
         }
         return false;
 
     }
+
+    /**
+     * Verifies every message of {@code messages} on the calling thread, reusing the verifier of
+     * each key across the messages signed by it.
+     *
+     * @return a bitmap whose bit {@code i} is set iff {@code messages.get(i)} carries a valid
+     *         signature
+     */
+    public static BitSet verifyAll(List<SignedMessage> messages) {
+        BitSet result = new BitSet(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            SignedMessage m = messages.get(i);
+            if (verifySignature(m.pubKey, m.message, m.signature))
+                result.set(i);
+        }
+        return result;
+    }
+
+    /** @return this thread's verifier initialised with key {@code addressId}, or null if the key is unusable */
+    private static Signature getVerifier(int addressId) {
+        LinkedHashMap<Integer, Signature> cache = verifiers.get();
+        Signature sig = cache.get(addressId);
+        if (sig != null)
+            return sig;
+        PublicKey pubKey = AddressTable.getShared().getAddress(addressId);
+        if (pubKey == null)
+            return null;
+        try {
+            sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(pubKey);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+            return null;
+        }
+        cache.put(addressId, sig);
+        return sig;
+    }
 }
@@ -0,0 +1,578 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A UTXO store kept in a memory-mapped file, so that the UTXO set does not have to live on the
+ * heap. The file is a hash table of fixed-width buckets with linear probing; each bucket holds a
+ * 32-byte transaction hash, the output index, the output value and the id of the output address.
+ * Addresses are interned in a separate append-only file.
+ *
+ * <p>
+ * Changes are kept on the heap until {@code commit}, which first writes them to a journal and
+ * syncs it, then applies them to the table. Reopening a directory replays a complete journal
+ * and ignores a torn one, so the store always comes back at the state of its last commit without
+ * rebuilding anything. A small cache of recently read outputs saves decoding hot entries again.
+ *
+ * <p>
+ * A copy is a view with its own uncommitted changes on top of the same file. Only the store
+ * that opened the directory can commit; before a commit changes the file, it hands every live
+ * copy the outputs the commit overwrites, so a copy keeps seeing the contents it was made with
+ * however many commits follow. A copy held across many commits thus grows by the entries they
+ * change, and copies that are no longer reachable cost nothing.
+ *
+ * <p>
+ * A store and its copies may be used from different threads, one thread per store: every method
+ * that reads the file or the uncommitted changes, and {@code commit}, which rewrites the file and
+ * the changes of the copies, lock the files they share.
+ */
+public class MappedUTXOStore implements UTXOStore {
+
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final int MAGIC = 0x5554584f;
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER = 32;
+    private static final int BUCKET = 1 + HASH_LENGTH + 4 + 8 + 4;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /** marks a pending removal, since null outputs are valid values */
+    private static final Object REMOVED = new Object();
+
+    /** the owner of every output decoded from the file */
+    private static final Transaction decoded = new Transaction();
+
+    /** the files, shared by a store and its copies */
+    private static class Table {
+        File dir;
+        RandomAccessFile tableFile;
+        MappedByteBuffer buckets;
+        int capacity;
+        int size;
+        int deleted;
+
+        RandomAccessFile addressFile;
+        ArrayList<PublicKey> addresses = new ArrayList<PublicKey>();
+        HashMap<ByteArrayWrapper, Integer> addressIds = new HashMap<ByteArrayWrapper, Integer>();
+        /** addresses interned since the last commit, in id order */
+        ArrayList<byte[]> newAddresses = new ArrayList<byte[]>();
+
+        /** the copies that may still be read, to be preserved from commits */
+        ArrayList<WeakReference<MappedUTXOStore>> copies = new ArrayList<WeakReference<MappedUTXOStore>>();
+    }
+
+    private Table table;
+    private boolean owner;
+    private LinkedHashMap<UTXO, Object> pending;
+    private LinkedHashMap<UTXO, Transaction.Output> cache;
+    private int cacheSize;
+    private int size;
+
+    /**
+     * Opens the store kept in directory {@code dir}, creating an empty one if there is none.
+     *
+     * @throws IOException if the files cannot be read or created
+     */
+    public MappedUTXOStore(File dir) throws IOException {
+        this(dir, DEFAULT_CACHE_SIZE);
+    }
+
+    public MappedUTXOStore(File dir, int cacheSize) throws IOException {
+        table = new Table();
+        table.dir = dir;
+        owner = true;
+        pending = new LinkedHashMap<UTXO, Object>();
+        this.cacheSize = cacheSize;
+        cache = newCache(cacheSize);
+
+        dir.mkdirs();
+        loadAddresses();
+        File tableFile = new File(dir, "utxo.table");
+        if (tableFile.length() < HEADER) {
+            createTable(tableFile, 1024);
+        } else {
+            mapTable(tableFile);
+        }
+        replayJournal();
+        size = table.size;
+    }
+
+    private MappedUTXOStore(MappedUTXOStore store) {
+        table = store.table;
+        owner = false;
+        cacheSize = store.cacheSize;
+        cache = newCache(cacheSize);
+        synchronized (table) {
+            pending = new LinkedHashMap<UTXO, Object>(store.pending);
+            size = store.size;
+            table.copies.add(new WeakReference<MappedUTXOStore>(this));
+        }
+    }
+
+    private static LinkedHashMap<UTXO, Transaction.Output> newCache(final int cacheSize) {
+        return new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        UTXO utxo = new UTXO(txHash, index);
+        synchronized (table) {
+            Object p = pending.get(utxo);
+            if (p != null)
+                return p == REMOVED ? null : (Transaction.Output) p;
+            if (pending.containsKey(utxo))
+                return null;
+            Transaction.Output txOut = cache.get(utxo);
+            if (txOut != null)
+                return txOut;
+            int bucket = find(txHash, index);
+            if (bucket < 0)
+                return null;
+            txOut = readOutput(bucket);
+            cache.put(utxo, txOut);
+            return txOut;
+        }
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        UTXO utxo = new UTXO(txHash, index);
+        synchronized (table) {
+            if (pending.containsKey(utxo))
+                return pending.get(utxo) != REMOVED;
+            return cache.containsKey(utxo) || find(txHash, index) >= 0;
+        }
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        checkHash(utxo.getTxHash());
+        synchronized (table) {
+            if (!contains(utxo.getTxHash(), utxo.getIndex()))
+                size++;
+            pending.put(utxo, txOut);
+            cache.remove(utxo);
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        if (utxo.getTxHash().length != HASH_LENGTH)
+            return;
+        synchronized (table) {
+            if (contains(utxo.getTxHash(), utxo.getIndex()))
+                size--;
+            pending.put(utxo, REMOVED);
+            cache.remove(utxo);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        synchronized (table) {
+            for (int bucket = 0; bucket < table.capacity; bucket++) {
+                if (table.buckets.get(offset(bucket)) != FULL)
+                    continue;
+                UTXO utxo = readKey(bucket);
+                if (!pending.containsKey(utxo))
+                    keys.add(utxo);
+            }
+            for (Map.Entry<UTXO, Object> e : pending.entrySet()) {
+                if (e.getValue() != REMOVED)
+                    keys.add(e.getKey());
+            }
+        }
+        return keys;
+    }
+
+    public MappedUTXOStore copy() {
+        return new MappedUTXOStore(this);
+    }
+
+    /**
+     * Makes every change since the last commit durable, atomically: after a crash the store
+     * reopens either with all of them or with none.
+     *
+     * @throws IllegalStateException if this store is a copy, or if the files cannot be written
+     */
+    public void commit() {
+        if (!owner)
+            throw new IllegalStateException("only the store that opened the files can commit");
+        synchronized (table) {
+            if (!pending.isEmpty())
+                commitPending();
+        }
+    }
+
+    private void commitPending() {
+        try {
+            // new addresses first, so that the journal never refers to one that is missing
+            ByteBuffer journal = ByteBuffer.allocate(8 + pending.size() * BUCKET + 8);
+            journal.putInt(MAGIC).putInt(pending.size());
+            for (Map.Entry<UTXO, Object> e : pending.entrySet()) {
+                UTXO utxo = e.getKey();
+                boolean removed = e.getValue() == REMOVED;
+                Transaction.Output txOut = removed ? null : (Transaction.Output) e.getValue();
+                journal.put(removed ? REMOVE : PUT);
+                journal.put(utxo.getTxHash());
+                journal.putInt(utxo.getIndex());
+                journal.putDouble(removed ? 0 : txOut.value);
+                journal.putInt(removed || txOut.address == null ? -1 : addressId(txOut.address));
+            }
+            preserveCopies();
+            flushAddresses();
+            CRC32 crc = new CRC32();
+            crc.update(journal.array(), 0, journal.position());
+            journal.putLong(crc.getValue());
+            journal.flip();
+
+            RandomAccessFile journalFile = new RandomAccessFile(new File(table.dir, "utxo.journal"), "rw");
+            try {
+                journalFile.setLength(0);
+                journalFile.getChannel().write(journal);
+                journalFile.getChannel().force(true);
+                journal.rewind();
+                apply(journal);
+                journalFile.setLength(0);
+                journalFile.getChannel().force(true);
+            } finally {
+                journalFile.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Gives every live copy, for each entry the pending changes overwrite in the file, the value
+     * it had there, unless the copy has a change of its own for it
+     */
+    private void preserveCopies() {
+        Iterator<WeakReference<MappedUTXOStore>> it = table.copies.iterator();
+        ArrayList<MappedUTXOStore> live = new ArrayList<MappedUTXOStore>();
+        while (it.hasNext()) {
+            MappedUTXOStore copy = it.next().get();
+            if (copy == null)
+                it.remove();
+            else
+                live.add(copy);
+        }
+        if (live.isEmpty())
+            return;
+        for (UTXO utxo : pending.keySet()) {
+            int bucket = find(utxo.getTxHash(), utxo.getIndex());
+            Object old = bucket < 0 ? REMOVED : readOutput(bucket);
+            for (MappedUTXOStore copy : live) {
+                if (!copy.pending.containsKey(utxo))
+                    copy.pending.put(utxo, old);
+            }
+        }
+    }
+
+    /** Releases the files. The store must not be used afterwards. */
+    public void close() throws IOException {
+        table.tableFile.close();
+        table.addressFile.close();
+    }
+
+    private static void checkHash(byte[] txHash) {
+        if (txHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("only " + HASH_LENGTH + "-byte transaction hashes can be stored");
+    }
+
+    private static int offset(int bucket) {
+        return HEADER + bucket * BUCKET;
+    }
+
+    private static int hash(byte[] txHash, int index) {
+        int h = ((txHash[0] & 0xff) << 24) | ((txHash[1] & 0xff) << 16) | ((txHash[2] & 0xff) << 8) | (txHash[3] & 0xff);
+        h = h * 31 + index;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean keyEquals(int bucket, byte[] txHash, int index) {
+        MappedByteBuffer buckets = table.buckets;
+        int off = offset(bucket);
+        if (buckets.getInt(off + 1 + HASH_LENGTH) != index)
+            return false;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (buckets.get(off + 1 + i) != txHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the bucket holding {@code (txHash, index)} in the file, or -1 */
+    private int find(byte[] txHash, int index) {
+        if (txHash.length != HASH_LENGTH)
+            return -1;
+        int mask = table.capacity - 1;
+        for (int bucket = hash(txHash, index) & mask;; bucket = (bucket + 1) & mask) {
+            byte state = table.buckets.get(offset(bucket));
+            if (state == EMPTY)
+                return -1;
+            if (state == FULL && keyEquals(bucket, txHash, index))
+                return bucket;
+        }
+    }
+
+    private UTXO readKey(int bucket) {
+        byte[] txHash = new byte[HASH_LENGTH];
+        int off = offset(bucket);
+        for (int i = 0; i < HASH_LENGTH; i++)
+            txHash[i] = table.buckets.get(off + 1 + i);
+        return new UTXO(txHash, table.buckets.getInt(off + 1 + HASH_LENGTH));
+    }
+
+    private Transaction.Output readOutput(int bucket) {
+        int off = offset(bucket) + 1 + HASH_LENGTH + 4;
+        double value = table.buckets.getDouble(off);
+        int addressId = table.buckets.getInt(off + 8);
+        return decoded.new Output(value, addressId < 0 ? null : table.addresses.get(addressId));
+    }
+
+    /** Applies the journal entries of {@code journal} to the table and syncs it */
+    private void apply(ByteBuffer journal) throws IOException {
+        journal.getInt();
+        int count = journal.getInt();
+        if ((table.size + table.deleted + count) * 10 > table.capacity * 7) {
+            int capacity = table.capacity;
+            while ((table.size + count) * 10 > capacity * 5)
+                capacity <<= 1;
+            grow(capacity);
+        }
+
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int n = 0; n < count; n++) {
+            byte op = journal.get();
+            journal.get(txHash);
+            int index = journal.getInt();
+            double value = journal.getDouble();
+            int addressId = journal.getInt();
+            int bucket = find(txHash, index);
+            if (op == REMOVE) {
+                if (bucket >= 0) {
+                    table.buckets.put(offset(bucket), DELETED);
+                    table.size--;
+                    table.deleted++;
+                }
+                continue;
+            }
+            if (bucket < 0) {
+                int mask = table.capacity - 1;
+                bucket = hash(txHash, index) & mask;
+                while (table.buckets.get(offset(bucket)) == FULL)
+                    bucket = (bucket + 1) & mask;
+                if (table.buckets.get(offset(bucket)) == DELETED)
+                    table.deleted--;
+                table.size++;
+            }
+            writeBucket(table.buckets, offset(bucket), txHash, index, value, addressId);
+        }
+        writeHeader(table.buckets, table.capacity, table.size, table.deleted);
+        table.buckets.force();
+    }
+
+    private static void writeBucket(ByteBuffer buckets, int off, byte[] txHash, int index, double value, int addressId) {
+        buckets.put(off, FULL);
+        for (int i = 0; i < HASH_LENGTH; i++)
+            buckets.put(off + 1 + i, txHash[i]);
+        buckets.putInt(off + 1 + HASH_LENGTH, index);
+        buckets.putDouble(off + 1 + HASH_LENGTH + 4, value);
+        buckets.putInt(off + 1 + HASH_LENGTH + 12, addressId);
+    }
+
+    private static void writeHeader(ByteBuffer buckets, int capacity, int size, int deleted) {
+        buckets.putInt(0, MAGIC);
+        buckets.putInt(4, capacity);
+        buckets.putInt(8, size);
+        buckets.putInt(12, deleted);
+    }
+
+    private void createTable(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(offset(capacity));
+        MappedByteBuffer buckets = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offset(capacity));
+        writeHeader(buckets, capacity, 0, 0);
+        buckets.force();
+        raf.close();
+        mapTable(file);
+    }
+
+    private void mapTable(File file) throws IOException {
+        if (table.tableFile != null)
+            table.tableFile.close();
+        table.tableFile = new RandomAccessFile(file, "rw");
+        table.buckets = table.tableFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, table.tableFile.length());
+        if (table.buckets.getInt(0) != MAGIC)
+            throw new IOException(file + " is not a UTXO table");
+        table.capacity = table.buckets.getInt(4);
+        table.size = table.buckets.getInt(8);
+        table.deleted = table.buckets.getInt(12);
+    }
+
+    /** Rehashes the table into a new file of {@code capacity} buckets, then swaps it in */
+    private void grow(int capacity) throws IOException {
+        File tmp = new File(table.dir, "utxo.table.tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        raf.setLength(0);
+        raf.setLength(offset(capacity));
+        MappedByteBuffer buckets = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offset(capacity));
+        int mask = capacity - 1;
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (int old = 0; old < table.capacity; old++) {
+            int off = offset(old);
+            if (table.buckets.get(off) != FULL)
+                continue;
+            for (int i = 0; i < HASH_LENGTH; i++)
+                txHash[i] = table.buckets.get(off + 1 + i);
+            int index = table.buckets.getInt(off + 1 + HASH_LENGTH);
+            int bucket = hash(txHash, index) & mask;
+            while (buckets.get(offset(bucket)) == FULL)
+                bucket = (bucket + 1) & mask;
+            writeBucket(buckets, offset(bucket), txHash, index, table.buckets.getDouble(off + 1 + HASH_LENGTH + 4),
+                    table.buckets.getInt(off + 1 + HASH_LENGTH + 12));
+        }
+        writeHeader(buckets, capacity, table.size, 0);
+        buckets.force();
+        raf.close();
+
+        File file = new File(table.dir, "utxo.table");
+        if (!tmp.renameTo(file))
+            throw new IOException("cannot replace " + file);
+        mapTable(file);
+    }
+
+    /** Applies the journal left by a commit that did not finish, or drops it if it is torn */
+    private void replayJournal() throws IOException {
+        File file = new File(table.dir, "utxo.journal");
+        if (file.length() < 16)
+            return;
+        RandomAccessFile journalFile = new RandomAccessFile(file, "rw");
+        try {
+            ByteBuffer journal = ByteBuffer.allocate((int) journalFile.length());
+            journalFile.getChannel().read(journal, 0);
+            journal.flip();
+            int count = journal.getInt(4);
+            int length = 8 + count * BUCKET;
+            if (journal.getInt(0) == MAGIC && count >= 0 && journal.limit() >= length + 8) {
+                CRC32 crc = new CRC32();
+                crc.update(journal.array(), 0, length);
+                if (crc.getValue() == journal.getLong(length)) {
+                    // the commit may have stopped after changing buckets but before storing the
+                    // counts in the header, so count again before replaying it
+                    recount();
+                    apply(journal);
+                }
+            }
+            journalFile.setLength(0);
+            journalFile.getChannel().force(true);
+        } finally {
+            journalFile.close();
+        }
+    }
+
+    /** Sets the counts of full and deleted buckets from the buckets themselves */
+    private void recount() {
+        int size = 0;
+        int deleted = 0;
+        for (int bucket = 0; bucket < table.capacity; bucket++) {
+            byte state = table.buckets.get(offset(bucket));
+            if (state == FULL)
+                size++;
+            else if (state == DELETED)
+                deleted++;
+        }
+        table.size = size;
+        table.deleted = deleted;
+    }
+
+    private int addressId(PublicKey address) {
+        byte[] encoded = address.getEncoded();
+        ByteArrayWrapper key = new ByteArrayWrapper(encoded);
+        Integer id = table.addressIds.get(key);
+        if (id == null) {
+            id = table.addresses.size();
+            table.addresses.add(address);
+            table.addressIds.put(key, id);
+            table.newAddresses.add(encoded);
+        }
+        return id;
+    }
+
+    private void flushAddresses() throws IOException {
+        if (table.newAddresses.isEmpty())
+            return;
+        int length = 0;
+        for (byte[] encoded : table.newAddresses)
+            length += 4 + encoded.length;
+        ByteBuffer b = ByteBuffer.allocate(length);
+        for (byte[] encoded : table.newAddresses)
+            b.putInt(encoded.length).put(encoded);
+        b.flip();
+        FileChannel channel = table.addressFile.getChannel();
+        channel.write(b, channel.size());
+        channel.force(true);
+        table.newAddresses.clear();
+    }
+
+    /** Reads the interned addresses, cutting off a record torn by a crash */
+    private void loadAddresses() throws IOException {
+        table.addressFile = new RandomAccessFile(new File(table.dir, "utxo.addresses"), "rw");
+        FileChannel channel = table.addressFile.getChannel();
+        ByteBuffer b = ByteBuffer.allocate((int) channel.size());
+        channel.read(b, 0);
+        b.flip();
+        KeyFactory keyFactory;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        while (b.remaining() >= 4) {
+            int start = b.position();
+            int length = b.getInt();
+            if (length < 0 || length > b.remaining()) {
+                b.position(start);
+                break;
+            }
+            byte[] encoded = new byte[length];
+            b.get(encoded);
+            try {
+                table.addresses.add(keyFactory.generatePublic(new X509EncodedKeySpec(encoded)));
+            } catch (InvalidKeySpecException e) {
+                throw new IOException("corrupt address " + table.addresses.size(), e);
+            }
+            table.addressIds.put(new ByteArrayWrapper(encoded), table.addresses.size() - 1);
+        }
+        if (b.position() < channel.size())
+            channel.truncate(b.position());
+    }
+}
@@ -0,0 +1,102 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A Merkle tree over transaction hashes, built bottom up as leaves are appended. Nodes are paired
+ * left to right on each level, and the last node of a level with an odd number of nodes moves up
+ * unchanged rather than being paired with itself, so no two different lists of leaves share a
+ * root. Leaves and inner nodes are hashed with different prefixes so a leaf cannot pass for an
+ * inner node.
+ *
+ * <p>
+ * Appending a leaf only rehashes the last node of each level, which takes O(log n) hashes, and
+ * every level is kept so that inclusion proofs need no hashing at all.
+ */
+public class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /** levels.get(0) holds the leaves, the last level holds the root alone */
+    private ArrayList<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+
+    /** Creates an empty tree */
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    private static byte[] leafHash(byte[] txHash) {
+        MessageDigest md = Crypto.sha256();
+        md.update(LEAF);
+        return md.digest(txHash);
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest md = Crypto.sha256();
+        md.update(NODE);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    /** Appends the transaction with hash {@code txHash} as the last leaf */
+    public void add(byte[] txHash) {
+        ArrayList<byte[]> level = levels.get(0);
+        level.add(leafHash(txHash));
+        for (int i = 0; level.size() > 1; i++) {
+            if (levels.size() == i + 1) levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> up = levels.get(i + 1);
+            int last = level.size() - 1;
+            byte[] parent = last % 2 == 0 ? level.get(last) : nodeHash(level.get(last - 1), level.get(last));
+            if (up.size() == last / 2) {
+                up.add(parent);
+            } else {
+                up.set(last / 2, parent);
+            }
+            level = up;
+        }
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the root of the tree, or the hash of nothing if it is empty */
+    public byte[] getRoot() {
+        if (size() == 0) return Crypto.sha256(new byte[0]);
+        return levels.get(levels.size() - 1).get(0).clone();
+    }
+
+    /**
+     * @return the sibling of each node on the path from leaf {@code index} to the root, leaf level
+     *         first, skipping the levels where the node moves up unchanged
+     */
+    public byte[][] getProof(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("no leaf " + index);
+        ArrayList<byte[]> proof = new ArrayList<byte[]>();
+        for (int i = 0; i + 1 < levels.size(); i++, index /= 2) {
+            ArrayList<byte[]> level = levels.get(i);
+            int sibling = index ^ 1;
+            if (sibling < level.size()) proof.add(level.get(sibling).clone());
+        }
+        return proof.toArray(new byte[0][]);
+    }
+
+    /**
+     * @return true if {@code proof} shows that the transaction with hash {@code txHash} is leaf
+     *         {@code index} of a tree of {@code size} leaves whose root is {@code root}
+     */
+    public static boolean verifyProof(byte[] root, byte[] txHash, int index, int size, byte[][] proof) {
+        if (index < 0 || index >= size) return false;
+        byte[] node = leafHash(txHash);
+        int used = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2, index /= 2) {
+            if (index % 2 == 0 && index == width - 1) continue;
+            if (used == proof.length) return false;
+            byte[] sibling = proof[used++];
+            node = index % 2 == 0 ? nodeHash(node, sibling) : nodeHash(sibling, node);
+        }
+        return used == proof.length && Arrays.equals(node, root);
+    }
+}
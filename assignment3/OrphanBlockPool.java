@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Blocks that arrived before their parent, waiting for it. They are indexed by the hash of the
+ * missing parent, so that connecting a block hands back the blocks waiting for it at once.
+ *
+ * <p>
+ * The pool is bounded in several ways, each evicting the oldest blocks first: by total number of
+ * blocks, by total encoded size, by number of blocks from the same source, so that one peer
+ * cannot fill it, and by age, since a block whose parent has not shown up for long probably never
+ * will.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 256;
+    public static final long DEFAULT_MAX_BYTES = 32 << 20;
+    public static final int DEFAULT_MAX_PER_SOURCE = 32;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 20 * 60 * 1000;
+
+    private static class Entry {
+        Block block;
+        ByteArrayWrapper hash;
+        ByteArrayWrapper parent;
+        Object source;
+        int size;
+        long arrival;
+    }
+
+    private int maxBlocks;
+    private long maxBytes;
+    private int maxPerSource;
+    private long maxAgeMillis;
+
+    /** every entry, oldest first */
+    private LinkedHashMap<ByteArrayWrapper, Entry> byHash = new LinkedHashMap<ByteArrayWrapper, Entry>();
+    private HashMap<ByteArrayWrapper, ArrayList<Entry>> byParent = new HashMap<ByteArrayWrapper, ArrayList<Entry>>();
+    private HashMap<Object, Integer> perSource = new HashMap<Object, Integer>();
+    private long bytes;
+
+    public OrphanBlockPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES, DEFAULT_MAX_PER_SOURCE, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public OrphanBlockPool(int maxBlocks, long maxBytes, int maxPerSource, long maxAgeMillis) {
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.maxPerSource = maxPerSource;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Keeps {@code block}, received from {@code source}, until its parent is connected. Blocks
+     * with a null {@code source} all count as coming from the same source.
+     *
+     * @return false if the block has no parent hash, is already waiting, or is larger than the
+     *         whole pool may be
+     */
+    public boolean addBlock(Block block, Object source) {
+        if (block.getPrevBlockHash() == null || block.getHash() == null) return false;
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (byHash.containsKey(hash)) return false;
+        int size = WireFormat.sizeOf(block);
+        if (size > maxBytes) return false;
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        Entry e = new Entry();
+        e.block = block;
+        e.hash = hash;
+        e.parent = new ByteArrayWrapper(block.getPrevBlockHash());
+        e.source = source;
+        e.size = size;
+        e.arrival = now;
+
+        Integer count = perSource.get(source);
+        if (count != null && count >= maxPerSource) {
+            removeOldestFrom(source);
+            count = perSource.get(source);
+        }
+        byHash.put(hash, e);
+        if (!byParent.containsKey(e.parent)) byParent.put(e.parent, new ArrayList<Entry>(1));
+        byParent.get(e.parent).add(e);
+        perSource.put(source, count == null ? 1 : count + 1);
+        bytes += e.size;
+
+        while (byHash.size() > maxBlocks || bytes > maxBytes)
+            remove(byHash.values().iterator().next());
+        return true;
+    }
+
+    /** Evicts the blocks that have waited longer than the maximum age */
+    private void expire(long now) {
+        Iterator<Entry> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (now - e.arrival <= maxAgeMillis) break;
+            it.remove();
+            unindex(e);
+        }
+    }
+
+    private void removeOldestFrom(Object source) {
+        for (Entry e : byHash.values()) {
+            if (e.source == null ? source == null : e.source.equals(source)) {
+                remove(e);
+                return;
+            }
+        }
+    }
+
+    private void remove(Entry e) {
+        byHash.remove(e.hash);
+        unindex(e);
+    }
+
+    /** Removes {@code e} from every index but {@code byHash} */
+    private void unindex(Entry e) {
+        ArrayList<Entry> siblings = byParent.get(e.parent);
+        siblings.remove(e);
+        if (siblings.isEmpty()) byParent.remove(e.parent);
+        int count = perSource.get(e.source) - 1;
+        if (count == 0) {
+            perSource.remove(e.source);
+        } else {
+            perSource.put(e.source, count);
+        }
+        bytes -= e.size;
+    }
+
+    /**
+     * Removes the blocks waiting for the block with hash {@code parentHash}, evicting the blocks
+     * that have waited too long first
+     *
+     * @return those blocks that are not too old, in the order they arrived
+     */
+    public ArrayList<Block> removeChildren(byte[] parentHash) {
+        expire(System.currentTimeMillis());
+        ArrayList<Block> children = new ArrayList<Block>();
+        ArrayList<Entry> entries = byParent.get(new ByteArrayWrapper(parentHash));
+        if (entries == null) return children;
+        for (Entry e : new ArrayList<Entry>(entries)) {
+            children.add(e.block);
+            remove(e);
+        }
+        return children;
+    }
+
+    /** @return true if the block with hash {@code hash} is waiting for its parent */
+    public boolean contains(byte[] hash) {
+        return byHash.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** @return the number of waiting blocks */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** @return the encoded size of the waiting blocks */
+    public long bytes() {
+        return bytes;
+    }
+}
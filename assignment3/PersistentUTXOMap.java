@@ -0,0 +1,331 @@
+import java.util.ArrayList;
+
+/**
+ * A hash array mapped trie from UTXOs to transaction outputs whose copies share structure.
+ * {@code copy} takes O(1): the copy and the original keep pointing at the same nodes, and each
+ * node is copied by whichever of them modifies it first. Nodes a map has created since its last
+ * copy belong to it alone and are modified in place, so a batch of changes to a fresh copy only
+ * pays for the paths it touches once.
+ */
+public class PersistentUTXOMap implements UTXOStore {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** returned by {@code Node.find} for keys that are not in the map */
+    private static final Object NOT_FOUND = new Object();
+
+    private Node root;
+    private int size;
+
+    /** nodes whose {@code edit} is this token belong to this map alone */
+    private Object edit;
+    /** set once the map may be read, and copied, by many threads */
+    private boolean frozen;
+
+    /** Creates a new empty map */
+    public PersistentUTXOMap() {
+        root = new BitmapNode(null, 0, new Object[0]);
+        size = 0;
+        edit = new Object();
+    }
+
+    private PersistentUTXOMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+        this.edit = new Object();
+    }
+
+    /** @return a map with the same contents as this one, sharing all of its nodes */
+    public PersistentUTXOMap copy() {
+        // neither map may modify the shared nodes in place from now on; a frozen map owns none
+        if (!frozen) edit = new Object();
+        return new PersistentUTXOMap(root, size);
+    }
+
+    /**
+     * Makes the map read-only, so that copying it writes nothing and any number of threads may
+     * read and copy it at once. The copies can be modified as usual.
+     */
+    public void freeze() {
+        edit = new Object();
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException("the map is frozen");
+    }
+
+    public void commit() {
+        // kept on the heap only, there is nothing to make durable
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        Object v = root.find(0, UTXO.hashCode(txHash, index), txHash, index);
+        return v == NOT_FOUND ? null : (Transaction.Output) v;
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        return root.find(0, UTXO.hashCode(txHash, index), txHash, index) != NOT_FOUND;
+    }
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any previous mapping */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        checkNotFrozen();
+        boolean[] added = new boolean[1];
+        root = root.put(edit, 0, utxo.hashCode(), utxo, txOut, added);
+        if (added[0])
+            size++;
+    }
+
+    /** Removes the mapping of {@code utxo}, if any */
+    public void remove(UTXO utxo) {
+        checkNotFrozen();
+        boolean[] removed = new boolean[1];
+        Node node = root.remove(edit, 0, utxo.hashCode(), utxo, removed);
+        root = node != null ? node : new BitmapNode(edit, 0, new Object[0]);
+        if (removed[0])
+            size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return all UTXOs in the map */
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        root.collect(keys);
+        return keys;
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static abstract class Node {
+        Object edit;
+
+        /** @return the output mapped to {@code (txHash, index)}, or {@code NOT_FOUND} */
+        abstract Object find(int shift, int hash, byte[] txHash, int index);
+
+        abstract Node put(Object edit, int shift, int hash, UTXO key, Transaction.Output val, boolean[] added);
+
+        /** @return the node without {@code key}, or null if it would be empty */
+        abstract Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed);
+
+        abstract void collect(ArrayList<UTXO> keys);
+    }
+
+    /**
+     * An inner node with one slot per set bit of {@code bitmap}. Slot {@code i} is either a key
+     * at {@code array[2i]} with its output at {@code array[2i+1]}, or null at {@code array[2i]}
+     * and a child node at {@code array[2i+1]}.
+     */
+    private static class BitmapNode extends Node {
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private BitmapNode editable(Object edit) {
+            if (this.edit == edit)
+                return this;
+            return new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int shift, int hash, byte[] txHash, int index) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return NOT_FOUND;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null)
+                return ((Node) v).find(shift + BITS, hash, txHash, index);
+            return ((UTXO) k).equals(txHash, index) ? v : NOT_FOUND;
+        }
+
+        Node put(Object edit, int shift, int hash, UTXO key, Transaction.Output val, boolean[] added) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2 * idx);
+                newArray[2 * idx] = key;
+                newArray[2 * idx + 1] = val;
+                System.arraycopy(array, 2 * idx, newArray, 2 * idx + 2, array.length - 2 * idx);
+                BitmapNode node = editable(edit);
+                node.bitmap |= bit;
+                node.array = newArray;
+                added[0] = true;
+                return node;
+            }
+
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(edit, shift + BITS, hash, key, val, added);
+                if (child == v)
+                    return this;
+                BitmapNode node = editable(edit);
+                node.array[2 * idx + 1] = child;
+                return node;
+            }
+            if (key.equals(k)) {
+                if (v == val)
+                    return this;
+                BitmapNode node = editable(edit);
+                node.array[2 * idx + 1] = val;
+                return node;
+            }
+
+            // two keys share this slot, push both one level down
+            Node child = createNode(edit, shift + BITS, (UTXO) k, (Transaction.Output) v, hash, key, val);
+            added[0] = true;
+            BitmapNode node = editable(edit);
+            node.array[2 * idx] = null;
+            node.array[2 * idx + 1] = child;
+            return node;
+        }
+
+        Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(edit, shift + BITS, hash, key, removed);
+                if (child == v)
+                    return this;
+                if (child != null) {
+                    BitmapNode node = editable(edit);
+                    node.array[2 * idx + 1] = child;
+                    return node;
+                }
+            } else if (key.equals(k)) {
+                removed[0] = true;
+            } else {
+                return this;
+            }
+
+            // the slot is now empty
+            if (bitmap == bit)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * idx + 2, newArray, 2 * idx, newArray.length - 2 * idx);
+            BitmapNode node = editable(edit);
+            node.bitmap ^= bit;
+            node.array = newArray;
+            return node;
+        }
+
+        void collect(ArrayList<UTXO> keys) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).collect(keys);
+                else
+                    keys.add((UTXO) array[i]);
+            }
+        }
+    }
+
+    /** A leaf holding keys whose hash codes are all equal to {@code hash} */
+    private static class CollisionNode extends Node {
+        int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(UTXO key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        Object find(int shift, int hash, byte[] txHash, int index) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (((UTXO) array[i]).equals(txHash, index))
+                    return array[i + 1];
+            }
+            return NOT_FOUND;
+        }
+
+        Node put(Object edit, int shift, int hash, UTXO key, Transaction.Output val, boolean[] added) {
+            if (hash != this.hash) {
+                // nest this node under a bitmap node that can tell the two hashes apart
+                BitmapNode node = new BitmapNode(edit, bitpos(this.hash, shift), new Object[] { null, this });
+                return node.put(edit, shift, hash, key, val, added);
+            }
+            int i = indexOf(key);
+            Object[] newArray;
+            if (i >= 0) {
+                if (array[i + 1] == val)
+                    return this;
+                newArray = array.clone();
+                newArray[i + 1] = val;
+            } else {
+                newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = val;
+                added[0] = true;
+            }
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        Node remove(Object edit, int shift, int hash, UTXO key, boolean[] removed) {
+            int i = indexOf(key);
+            if (i < 0)
+                return this;
+            removed[0] = true;
+            if (array.length == 2)
+                return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+            if (this.edit == edit) {
+                array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        void collect(ArrayList<UTXO> keys) {
+            for (int i = 0; i < array.length; i += 2)
+                keys.add((UTXO) array[i]);
+        }
+    }
+
+    private static Node createNode(Object edit, int shift, UTXO key1, Transaction.Output val1, int hash2, UTXO key2,
+            Transaction.Output val2) {
+        int hash1 = key1.hashCode();
+        if (hash1 == hash2)
+            return new CollisionNode(edit, hash1, new Object[] { key1, val1, key2, val2 });
+        boolean[] added = new boolean[1];
+        Node node = new BitmapNode(edit, 0, new Object[0]);
+        node = node.put(edit, shift, hash1, key1, val1, added);
+        return node.put(edit, shift, hash2, key2, val2, added);
+    }
+}
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of signatures that have been verified successfully. Entries are keyed by the
+ * id of the public key in the shared {@code AddressTable}, or its encoding if it is not interned,
+ * the digest of the signed data and the signature, and the least recently used entry
+ * is evicted once the cache is full. The shared instance is consulted by every {@code TxHandler},
+ * so a transaction seen by several handlers or forks has each signature checked only once.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final SignatureCache shared = new SignatureCache(DEFAULT_CAPACITY);
+
+    private LinkedHashMap<ByteArrayWrapper, Boolean> verified;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /** Creates an empty cache holding at most {@code capacity} verified signatures */
+    public SignatureCache(final int capacity) {
+        verified = new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /** @return the cache shared by all handlers */
+    public static SignatureCache getShared() {
+        return shared;
+    }
+
+    /** Same as {@code Crypto.verifySignature}, consulting the shared cache first */
+    public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        return shared.verify(pubKey, message, signature);
+    }
+
+    /**
+     * Same as {@code verifySignature(pubKey, ...)} for the key with id {@code addressId} in the
+     * shared {@code AddressTable}
+     */
+    public static boolean verifySignature(int addressId, byte[] message, byte[] signature) {
+        return shared.verify(addressId, message, signature);
+    }
+
+    /** Same as {@code verifySignature(output.address, ...)}, by the id of the address if it has */
+    public static boolean verifySignature(Transaction.Output output, byte[] message, byte[] signature) {
+        int addressId = output.getAddressId();
+        if (addressId >= 0)
+            return shared.verify(addressId, message, signature);
+        return shared.verify(output.address, message, signature);
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}. Only successful verifications are remembered.
+     */
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || message == null || signature == null)
+            return Crypto.verifySignature(pubKey, message, signature);
+        byte[] x509 = pubKey.getEncoded();
+        AddressTable.Entry e = AddressTable.getShared().find(x509);
+        if (e != null)
+            return verify(e.id, message, signature);
+
+        ByteArrayWrapper key = key(x509, message, signature);
+        if (isVerified(key))
+            return true;
+        boolean valid = Crypto.verifySignature(pubKey, message, signature);
+        if (valid)
+            remember(key);
+        return valid;
+    }
+
+    /**
+     * Same as {@code verify(pubKey, ...)} for the key with id {@code addressId} in the shared
+     * {@code AddressTable}
+     */
+    public boolean verify(int addressId, byte[] message, byte[] signature) {
+        if (addressId < 0 || message == null || signature == null)
+            return Crypto.verifySignature(addressId, message, signature);
+
+        ByteArrayWrapper key = key(ByteBuffer.allocate(Integer.SIZE / 8).putInt(addressId).array(), message, signature);
+        if (isVerified(key))
+            return true;
+        boolean valid = Crypto.verifySignature(addressId, message, signature);
+        if (valid)
+            remember(key);
+        return valid;
+    }
+
+    /** @return true if {@code key} is cached, counting a hit or a miss */
+    private synchronized boolean isVerified(ByteArrayWrapper key) {
+        if (verified.get(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    private synchronized void remember(ByteArrayWrapper key) {
+        verified.put(key, Boolean.TRUE);
+    }
+
+    /** @return the entry for {@code signature} of {@code message} under the key {@code address} names */
+    private static ByteArrayWrapper key(byte[] address, byte[] message, byte[] signature) {
+        MessageDigest md = Crypto.sha256();
+        byte[] messageDigest = md.digest(message);
+        // the length keeps a 4-byte id apart from an encoding
+        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        md.update(b.putInt(address.length).array());
+        md.update(address);
+        md.update(messageDigest);
+        md.update(signature);
+        return new ByteArrayWrapper(md.digest());
+    }
+
+    /** @return the number of verifications answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of verifications that had to check the signature */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of verified signatures currently held */
+    public synchronized int size() {
+        return verified.size();
+    }
+
+    /** Forgets every verified signature and resets the counters */
+    public synchronized void clear() {
+        verified.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -1,9 +1,6 @@
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -74,11 +71,57 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** the entry of {@code address}, looked up the first time it is needed */
+        private AddressTable.Entry entry;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the entry of {@code address}, which must not be null; its id is -1 until the key is interned */
+        private AddressTable.Entry entry() {
+            AddressTable.Entry e = entry;
+            // a new key may have been assigned to address since the entry was looked up
+            if (e == null || (e.address != address && !e.address.equals(address))) {
+                e = AddressTable.getShared().lookup(address);
+                entry = e;
+            } else if (e.id < 0) {
+                AddressTable.Entry interned = AddressTable.getShared().find(e.x509);
+                if (interned != null) {
+                    e = interned;
+                    entry = e;
+                }
+            }
+            return e;
+        }
+
+        /** Adds {@code address} to the shared {@code AddressTable}, as the output is going into a UTXO pool */
+        void intern() {
+            if (address != null && entry().id < 0)
+                entry = AddressTable.getShared().intern(address, entry.x509);
+        }
+
+        /**
+         * @return the id of {@code address} in the shared {@code AddressTable}, or -1 if it is null
+         *         or has not been interned
+         */
+        public int getAddressId() {
+            return address == null ? -1 : entry().id;
+        }
+
+        /** @return the X.509 encoding of {@code address}, or null if it is null; must not be modified */
+        public byte[] getEncodedAddress() {
+            return address == null ? null : entry().x509;
+        }
+
+        /** @return the public exponent then the modulus of {@code address}, as {@code getRawOutputs()} writes them */
+        public byte[] getRawAddress() {
+            byte[] raw = entry().raw;
+            if (raw == null) throw new ClassCastException("not an RSA key: " + address.getAlgorithm());
+            return raw;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,20 +134,21 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            if (address == null || op.address == null)
+                return address == op.address;
+            // equal keys have equal encodings, hence the same id once interned
+            AddressTable.Entry e = entry();
+            AddressTable.Entry f = op.entry();
+            if (e.id >= 0 && f.id >= 0)
+                return e.id == f.id;
+            return e.hash == f.hash && Arrays.equals(e.x509, f.x509);
         }
 
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            // by encoding rather than id, which changes when the key is interned
+            hash = hash * 31 + (address == null ? -1 : entry().hash);
             return hash;
         }
     }
@@ -166,39 +210,42 @@ public class Transaction {
         }
     }
 
+    /** @return the encoding of all outputs, which ends both the data to sign and the raw transaction */
+    public byte[] getRawOutputs() {
+        int size = 0;
+        for (Output op : outputs)
+            size += Double.SIZE / 8 + op.getRawAddress().length;
+        ByteBuffer rawOutputs = ByteBuffer.allocate(size);
+        for (Output op : outputs) {
+            rawOutputs.putDouble(op.value);
+            rawOutputs.put(op.getRawAddress());
+        }
+        return rawOutputs.array();
+    }
+
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        if (index > inputs.size())
+            return null;
+        return getRawDataToSign(index, getRawOutputs());
+    }
+
+    /**
+     * Same as {@code getRawDataToSign(index)}, with the outputs section already encoded by
+     * {@code getRawOutputs()}. Encoding it once lets every input of a transaction share it.
+     */
+    public byte[] getRawDataToSign(int index, byte[] rawOutputs) {
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        int hashLength = prevTxHash == null ? 0 : prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.SIZE / 8 + rawOutputs.length);
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(rawOutputs);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -206,50 +253,29 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] rawOutputs = getRawOutputs();
+        int size = rawOutputs.length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            size += Integer.SIZE / 8;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        rawTx.put(rawOutputs);
+        return rawTx.array();
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = Crypto.sha256(getRawTx());
     }
 
     public void setHash(byte[] h) {
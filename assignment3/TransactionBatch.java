@@ -0,0 +1,300 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable batch of transactions stored column by column: one array per field across the
+ * whole batch instead of one object per input and output. Transaction {@code t} owns inputs
+ * {@code firstInput[t]} to {@code firstInput[t + 1]} and outputs {@code firstOutput[t]} to
+ * {@code firstOutput[t + 1]} of the columns; values are plain doubles, addresses are entries of
+ * the shared {@code AddressTable}, or entries with id -1 that it does not keep for keys it has not
+ * interned, and each input refers to the hash it spends by its position in a
+ * table of the distinct hashes of the batch. The first {@code size()} entries of that table are
+ * the hashes of the transactions themselves, so an input spending an output created in the batch
+ * refers to a position below {@code size()}, the position of the transaction creating it.
+ *
+ * <p>
+ * Sweeping a batch thus reads a few dense arrays, and comparing hashes within the batch compares
+ * ints. Arrays returned by the getters are shared and must not be modified.
+ */
+public class TransactionBatch {
+
+    /** the owner of every output made from a batch */
+    private static final Transaction decoded = new Transaction();
+
+    private final int size;
+    /** the hashes of the transactions, then the other hashes their inputs spend */
+    private final byte[][] hashes;
+    /** for each transaction, the position in {@code hashes} of the first transaction with its hash */
+    private final int[] canonical;
+    private final int[] firstInput;
+    private final int[] firstOutput;
+
+    private final int[] prevHash;
+    private final int[] outputIndex;
+    private final byte[][] signature;
+
+    private final double[] value;
+    private final AddressTable.Entry[] address;
+
+    /** Builds a batch of {@code txs}, which should be finalized and not be coinbases */
+    public TransactionBatch(List<Transaction> txs) {
+        size = txs.size();
+        int numInputs = 0;
+        int numOutputs = 0;
+        for (Transaction tx : txs) {
+            numInputs += tx.numInputs();
+            numOutputs += tx.numOutputs();
+        }
+        firstInput = new int[size + 1];
+        firstOutput = new int[size + 1];
+        prevHash = new int[numInputs];
+        outputIndex = new int[numInputs];
+        signature = new byte[numInputs][];
+        value = new double[numOutputs];
+        address = new AddressTable.Entry[numOutputs];
+        canonical = new int[size];
+
+        HashTable table = new HashTable(size, numInputs);
+        for (int t = 0; t < size; t++)
+            canonical[t] = table.addTransaction(txs.get(t).getHash());
+        AddressTable addresses = AddressTable.getShared();
+        int in = 0;
+        int out = 0;
+        for (int t = 0; t < size; t++) {
+            Transaction tx = txs.get(t);
+            firstInput[t] = in;
+            for (Transaction.Input input : tx.getInputs()) {
+                prevHash[in] = table.refer(input.prevTxHash);
+                outputIndex[in] = input.outputIndex;
+                signature[in++] = input.signature;
+            }
+            firstOutput[t] = out;
+            for (Transaction.Output output : tx.getOutputs()) {
+                value[out] = output.value;
+                address[out++] = output.address == null ? null : addresses.lookup(output.address);
+            }
+        }
+        firstInput[size] = in;
+        firstOutput[size] = out;
+        hashes = table.toArray();
+    }
+
+    /**
+     * Builds a batch of the transactions of {@code block}, other than its coinbase, straight from
+     * their encoding. {@code format} decodes each address once, the first time it sees it.
+     *
+     * @throws IllegalArgumentException if an address is not a valid key
+     */
+    public TransactionBatch(BlockView block, WireFormat format) {
+        size = block.numTransactions();
+        TransactionView tx = new TransactionView();
+        int numInputs = 0;
+        int numOutputs = 0;
+        for (int t = 0; t < size; t++) {
+            block.getTransaction(t, tx);
+            numInputs += tx.numInputs();
+            numOutputs += tx.numOutputs();
+        }
+        firstInput = new int[size + 1];
+        firstOutput = new int[size + 1];
+        prevHash = new int[numInputs];
+        outputIndex = new int[numInputs];
+        signature = new byte[numInputs][];
+        value = new double[numOutputs];
+        address = new AddressTable.Entry[numOutputs];
+        canonical = new int[size];
+
+        HashTable table = new HashTable(size, numInputs);
+        for (int t = 0; t < size; t++)
+            canonical[t] = table.addTransaction(block.getTransaction(t, tx).getHash());
+        AddressTable addresses = AddressTable.getShared();
+        int in = 0;
+        int out = 0;
+        for (int t = 0; t < size; t++) {
+            block.getTransaction(t, tx);
+            firstInput[t] = in;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                prevHash[in] = table.refer(tx.getPrevTxHash(i));
+                outputIndex[in] = tx.getOutputIndex(i);
+                signature[in++] = tx.getSignature(i);
+            }
+            firstOutput[t] = out;
+            for (int o = 0; o < tx.numOutputs(); o++) {
+                value[out] = tx.getValue(o);
+                PublicKey key = format.getOutput(tx, o).address;
+                address[out++] = key == null ? null : addresses.lookup(key);
+            }
+        }
+        firstInput[size] = in;
+        firstOutput[size] = out;
+        hashes = table.toArray();
+    }
+
+    /** The distinct hashes of a batch being built, each with its position */
+    private static class HashTable {
+        private HashMap<ByteArrayWrapper, Integer> positions;
+        private byte[][] hashes;
+        private int used;
+
+        HashTable(int numTxs, int numInputs) {
+            positions = new HashMap<ByteArrayWrapper, Integer>(2 * (numTxs + numInputs));
+            hashes = new byte[numTxs + numInputs][];
+        }
+
+        /**
+         * Gives the next transaction of the batch its own position
+         *
+         * @return the position of the first transaction with the same hash
+         */
+        int addTransaction(byte[] hash) {
+            int position = used;
+            hashes[used++] = hash;
+            if (hash == null) return position;
+            ByteArrayWrapper key = new ByteArrayWrapper(hash);
+            Integer first = positions.get(key);
+            if (first != null) return first;
+            positions.put(key, position);
+            return position;
+        }
+
+        /** @return the position of {@code hash}, or -1 for null */
+        int refer(byte[] hash) {
+            if (hash == null) return -1;
+            ByteArrayWrapper key = new ByteArrayWrapper(hash);
+            Integer position = positions.get(key);
+            if (position != null) return position;
+            positions.put(key, used);
+            hashes[used] = hash;
+            return used++;
+        }
+
+        byte[][] toArray() {
+            byte[][] array = new byte[used][];
+            System.arraycopy(hashes, 0, array, 0, used);
+            return array;
+        }
+    }
+
+    /** @return the number of transactions in the batch */
+    public int size() {
+        return size;
+    }
+
+    public byte[] getHash(int tx) {
+        return hashes[tx];
+    }
+
+    /** @return the first transaction of the batch with the same hash as {@code tx} */
+    public int canonical(int tx) {
+        return canonical[tx];
+    }
+
+    public int numInputs(int tx) {
+        return firstInput[tx + 1] - firstInput[tx];
+    }
+
+    public int numOutputs(int tx) {
+        return firstOutput[tx + 1] - firstOutput[tx];
+    }
+
+    /**
+     * @return the position in the batch of the transaction whose output input {@code index} of
+     *         {@code tx} spends, or -1 if it spends an output from outside the batch
+     */
+    public int getPrevTx(int tx, int index) {
+        int position = prevHash[firstInput[tx] + index];
+        return position >= 0 && position < size ? position : -1;
+    }
+
+    public byte[] getPrevTxHash(int tx, int index) {
+        int position = prevHash[firstInput[tx] + index];
+        return position < 0 ? null : hashes[position];
+    }
+
+    public int getOutputIndex(int tx, int index) {
+        return outputIndex[firstInput[tx] + index];
+    }
+
+    public byte[] getSignature(int tx, int index) {
+        return signature[firstInput[tx] + index];
+    }
+
+    /** @return true if input {@code index} of {@code tx} spends the same output as an input before it */
+    public boolean claimedBefore(int tx, int index) {
+        int first = firstInput[tx];
+        int in = first + index;
+        for (int i = first; i < in; i++) {
+            if (prevHash[i] == prevHash[in] && outputIndex[i] == outputIndex[in]) return true;
+        }
+        return false;
+    }
+
+    public double getValue(int tx, int index) {
+        return value[firstOutput[tx] + index];
+    }
+
+    /**
+     * @return the id of the address of output {@code index} of {@code tx} in the shared
+     *         {@code AddressTable}, or -1 if it is null or was not interned when the batch was built
+     */
+    public int getAddressId(int tx, int index) {
+        AddressTable.Entry e = address[firstOutput[tx] + index];
+        return e == null ? -1 : e.id;
+    }
+
+    /** @return output {@code index} of {@code tx} as an object, for a UTXO pool */
+    public Transaction.Output getOutput(int tx, int index) {
+        int o = firstOutput[tx] + index;
+        return decoded.new Output(value[o], address[o] == null ? null : address[o].address);
+    }
+
+    /**
+     * Same as {@code getRawOutputs()} of transaction {@code tx}
+     *
+     * @throws IllegalArgumentException if an output has no address or one that is not an RSA key
+     */
+    public byte[] getRawOutputs(int tx) {
+        int size = 0;
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++)
+            size += Double.SIZE / 8 + rawAddress(o).length;
+        ByteBuffer rawOutputs = ByteBuffer.allocate(size);
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++) {
+            rawOutputs.putDouble(value[o]);
+            rawOutputs.put(rawAddress(o));
+        }
+        return rawOutputs.array();
+    }
+
+    private byte[] rawAddress(int o) {
+        AddressTable.Entry e = address[o];
+        if (e == null || e.raw == null) throw new IllegalArgumentException("output without an RSA address");
+        return e.raw;
+    }
+
+    /** Same as {@code getRawDataToSign(index, rawOutputs)} of transaction {@code tx} */
+    public byte[] getRawDataToSign(int tx, int index, byte[] rawOutputs) {
+        byte[] prevTxHash = getPrevTxHash(tx, index);
+        int hashLength = prevTxHash == null ? 0 : prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.SIZE / 8 + rawOutputs.length);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(getOutputIndex(tx, index));
+        sigData.put(rawOutputs);
+        return sigData.array();
+    }
+
+    /** @return transaction {@code tx} as an object */
+    public Transaction getTransaction(int tx) {
+        Transaction t = new Transaction();
+        for (int i = 0; i < numInputs(tx); i++) {
+            t.addInput(getPrevTxHash(tx, i), getOutputIndex(tx, i));
+            t.addSignature(getSignature(tx, i), i);
+        }
+        for (int o = firstOutput[tx]; o < firstOutput[tx + 1]; o++)
+            t.addOutput(value[o], address[o] == null ? null : address[o].address);
+        t.setHash(getHash(tx));
+        return t;
+    }
+}
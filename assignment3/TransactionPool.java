@@ -1,37 +1,312 @@
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The pending transactions, indexed by hash, by fee rate and by the outputs they spend. The pool
+ * holds at most {@code maxCount} transactions taking at most {@code maxBytes} bytes of
+ * {@code getRawTx()}; when either limit is passed, the transaction with the lowest fee rate is
+ * evicted, along with the pending transactions that spend its outputs.
+ *
+ * <p>
+ * {@code snapshot} records the pool for other threads to read while it keeps changing. A
+ * snapshot is a full copy taken now and then, plus the list of changes made since, replayed
+ * into a pool of its own by the first reader that asks for it; recording a change costs O(1),
+ * and the copies are spread out so that each costs O(1) per change it follows.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** The pool at the moment {@code snapshot} was called, built when first read */
+    public static class Snapshot {
+        private final TransactionPool base;
+        private final Change changes;
+        private final long version;
+        private TransactionPool pool;
+
+        private Snapshot(TransactionPool base, Change changes, long version) {
+            this.base = base;
+            this.changes = changes;
+            this.version = version;
+        }
+
+        /** @return the version of the pool, without building it */
+        public long getVersion() {
+            return version;
+        }
+
+        /** @return the pool, which is shared between readers and must not be modified */
+        public synchronized TransactionPool get() {
+            if (pool != null) return pool;
+            if (changes == null) {
+                pool = base;
+                return pool;
+            }
+            ArrayList<Change> log = new ArrayList<Change>();
+            for (Change c = changes; c != null; c = c.previous)
+                log.add(c);
+            pool = new TransactionPool(base);
+            for (int i = log.size() - 1; i >= 0; i--) {
+                Change c = log.get(i);
+                if (c.added != null) {
+                    pool.add(c.added.tx, c.added.fee, c.added.size);
+                } else {
+                    pool.remove(c.removed);
+                }
+            }
+            pool.version = version;
+            return pool;
+        }
+    }
+
+    /** A change to the pool, in a list from the latest back to the copy it follows */
+    private static class Change {
+        final Change previous;
+        final Entry added;
+        final ByteArrayWrapper removed;
+
+        Change(Change previous, Entry added, ByteArrayWrapper removed) {
+            this.previous = previous;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    private static class Entry {
+        Transaction tx;
+        double fee;
+        int size;
+        /** insertion order, which breaks ties between equal fee rates */
+        long seq;
+
+        double feeRate() {
+            return fee / Math.max(1, size);
+        }
+    }
+
+    private HashMap<ByteArrayWrapper, Entry> H;
+    /** highest fee rate first */
+    private TreeSet<Entry> byFeeRate;
+    /** the pending transactions spending each output; more than one means they conflict */
+    private HashMap<UTXO, ArrayList<Transaction>> spenders;
 
+    private int maxCount;
+    private long maxBytes;
+    private long bytes;
+    private long seq;
+    /** the source of versions, unique across pools so that a version identifies contents */
+    private static final AtomicLong versions = new AtomicLong();
+
+    /** changes with every change to the pool */
+    private long version = versions.incrementAndGet();
+
+    /** the copy the next snapshot starts from, never modified, or null before the first snapshot */
+    private TransactionPool base;
+    /** the changes since {@code base} was copied, latest first */
+    private Change changes;
+    private int numChanges;
+
+    /** Creates a pool with no size limit */
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Creates a pool of at most {@code maxCount} transactions and {@code maxBytes} bytes */
+    public TransactionPool(int maxCount, long maxBytes) {
+        H = new HashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>(new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = Double.compare(b.feeRate(), a.feeRate());
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        });
+        spenders = new HashMap<UTXO, ArrayList<Transaction>>();
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this(txPool, txPool.maxCount, txPool.maxBytes);
+        version = txPool.version;
     }
 
+    /**
+     * Creates a pool of at most {@code maxCount} transactions and {@code maxBytes} bytes holding
+     * the transactions of {@code txPool} that fit, highest fee rate first
+     */
+    public TransactionPool(TransactionPool txPool, int maxCount, long maxBytes) {
+        this(maxCount, maxBytes);
+        for (Entry e : txPool.byFeeRate)
+            add(e.tx, e.fee, e.size);
+    }
+
+    /** Adds {@code tx} with an unknown fee, which ranks it as if it paid none */
     public void addTransaction(Transaction tx) {
+        add(tx, 0, tx.getRawTx().length);
+    }
+
+    /**
+     * Adds {@code tx}, ranked by the fee it pays when its inputs are looked up in {@code utxoPool}
+     * or among the outputs of pending transactions. Inputs found in neither count for nothing.
+     */
+    public void addTransaction(Transaction tx, UTXOPool utxoPool) {
+        double fee = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null) continue;
+            Transaction.Output prev = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+            if (prev == null) {
+                Transaction parent = getTransaction(in.prevTxHash);
+                if (parent != null && in.outputIndex >= 0 && in.outputIndex < parent.numOutputs())
+                    prev = parent.getOutput(in.outputIndex);
+            }
+            if (prev != null) fee += prev.value;
+        }
+        for (Transaction.Output out : tx.getOutputs())
+            fee -= out.value;
+        add(tx, fee, tx.getRawTx().length);
+    }
+
+    private void add(Transaction tx, double fee, int size) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        if (H.containsKey(hash)) remove(hash);
+
+        Entry e = new Entry();
+        e.tx = tx;
+        e.fee = fee;
+        e.size = size;
+        e.seq = seq++;
+        version = versions.incrementAndGet();
+        record(e, null);
+        H.put(hash, e);
+        byFeeRate.add(e);
+        bytes += size;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null) continue;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Transaction> txs = spenders.get(utxo);
+            if (txs == null) {
+                txs = new ArrayList<Transaction>(1);
+                spenders.put(utxo, txs);
+            }
+            txs.add(tx);
+        }
+
+        while (H.size() > maxCount || bytes > maxBytes)
+            removeWithDescendants(byFeeRate.last().tx.getHash());
+    }
+
+    private void record(Entry added, ByteArrayWrapper removed) {
+        if (base == null) return;
+        changes = new Change(changes, added, removed);
+        numChanges++;
+    }
+
+    /**
+     * @return a record of the pool as it is now, which other threads may read while this pool
+     *         changes. Calls must not overlap with changes to the pool.
+     */
+    public Snapshot snapshot() {
+        // copy again once replaying would cost about as much as copying
+        if (base == null || numChanges > H.size() / 4 + 64) {
+            base = new TransactionPool(this);
+            changes = null;
+            numChanges = 0;
+        }
+        return new Snapshot(base, changes, version);
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        remove(new ByteArrayWrapper(txHash));
+    }
+
+    private void remove(ByteArrayWrapper hash) {
+        Entry e = H.remove(hash);
+        if (e == null) return;
+        version = versions.incrementAndGet();
+        record(null, hash);
+        byFeeRate.remove(e);
+        bytes -= e.size;
+        for (Transaction.Input in : e.tx.getInputs()) {
+            if (in.prevTxHash == null) continue;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Transaction> txs = spenders.get(utxo);
+            if (txs == null) continue;
+            for (int i = 0; i < txs.size(); i++) {
+                if (txs.get(i) == e.tx) txs.remove(i--);
+            }
+            if (txs.isEmpty()) spenders.remove(utxo);
+        }
+    }
+
+    /** Removes the transaction with hash {@code txHash} and every pending transaction built on it */
+    public void removeWithDescendants(byte[] txHash) {
+        ArrayList<byte[]> queue = new ArrayList<byte[]>();
+        queue.add(txHash);
+        for (int i = 0; i < queue.size(); i++) {
+            Transaction tx = getTransaction(queue.get(i));
+            if (tx == null) continue;
+            removeTransaction(tx.getHash());
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                for (Transaction child : getSpenders(new UTXO(tx.getHash(), j)))
+                    queue.add(child.getHash());
+            }
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry e = H.get(hash);
+        return e == null ? null : e.tx;
+    }
+
+    /** @return the pending transactions that spend {@code utxo}, which must not be modified */
+    public ArrayList<Transaction> getSpenders(UTXO utxo) {
+        ArrayList<Transaction> txs = spenders.get(utxo);
+        return txs == null ? new ArrayList<Transaction>(0) : txs;
+    }
+
+    /** @return the pending transactions, highest fee rate first, without copying them */
+    public Iterable<Transaction> byFeeRate() {
+        return new Iterable<Transaction>() {
+            public Iterator<Transaction> iterator() {
+                final Iterator<Entry> entries = Collections.unmodifiableSet(byFeeRate).iterator();
+                return new Iterator<Transaction>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public Transaction next() {
+                        return entries.next().tx;
+                    }
+                };
+            }
+        };
+    }
+
+    /** @return the number of pending transactions */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return a number that changes whenever a transaction is added or removed, and that no
+     *         other pool has unless it is a copy with the same transactions
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return the bytes of {@code getRawTx()} the pending transactions take */
+    public long bytes() {
+        return bytes;
     }
 
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
+        ArrayList<Transaction> T = new ArrayList<Transaction>(H.size());
+        for (Transaction tx : byFeeRate())
             T.add(tx);
         return T;
     }
@@ -0,0 +1,288 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A read-only view of a transaction in {@code WireFormat}, reading its fields straight from the
+ * buffer holding it, which may be a heap, direct or mapped buffer. {@code wrap} walks the
+ * encoding once to find where each input and output starts; after that every getter decodes only
+ * the field it returns, and nothing is allocated but the arrays handed back.
+ *
+ * <p>
+ * A view is a flyweight: wrapping another transaction reuses it, so callers iterating over many
+ * transactions need only one. The buffer must not change while it is wrapped.
+ */
+public class TransactionView {
+
+    /** the fewest bytes an input takes: a null prevTxHash, the output index and a null signature */
+    static final int MIN_INPUT_SIZE = 12;
+    /** the fewest bytes an output takes: the value and a null address */
+    static final int MIN_OUTPUT_SIZE = 12;
+    /** the fewest bytes a transaction takes: the coinbase flag, a null hash and two zero counts */
+    static final int MIN_SIZE = 13;
+
+    private ByteBuffer b;
+    private int offset;
+    private int size;
+    private boolean coinbase;
+    private int numInputs;
+    private int numOutputs;
+    /** where the prevTxHash of each input starts */
+    private int[] inputs = new int[4];
+    /** where the value of each output starts */
+    private int[] outputs = new int[4];
+    /** arrays {@code wrap} fills, swapped with the ones above once it succeeds */
+    private int[] spareInputs = new int[4];
+    private int[] spareOutputs = new int[4];
+
+    /**
+     * Points this view at the transaction at {@code offset} of {@code b}, whose position and limit
+     * are left alone
+     *
+     * @return this view
+     * @throws IllegalArgumentException if the bytes are not a transaction, in which case the view
+     *         is left as it was
+     */
+    public TransactionView wrap(ByteBuffer b, int offset) {
+        ByteBuffer d = b.duplicate();
+        try {
+            d.position(offset);
+            boolean coinbase = d.get() == 1;
+            skipBytes(d);
+            int numInputs = d.getInt();
+            if (numInputs < 0 || (coinbase && numInputs != 0) || numInputs > d.remaining() / MIN_INPUT_SIZE)
+                throw new IllegalArgumentException("bad input count " + numInputs);
+            int[] inputs = spareInputs;
+            if (inputs.length < numInputs) inputs = new int[Math.max(numInputs, 2 * inputs.length)];
+            for (int i = 0; i < numInputs; i++) {
+                inputs[i] = d.position();
+                skipBytes(d);
+                d.getInt();
+                skipBytes(d);
+            }
+            int numOutputs = d.getInt();
+            if (numOutputs < 0 || (coinbase && numOutputs != 1) || numOutputs > d.remaining() / MIN_OUTPUT_SIZE)
+                throw new IllegalArgumentException("bad output count " + numOutputs);
+            int[] outputs = spareOutputs;
+            if (outputs.length < numOutputs) outputs = new int[Math.max(numOutputs, 2 * outputs.length)];
+            for (int i = 0; i < numOutputs; i++) {
+                outputs[i] = d.position();
+                d.getDouble();
+                skipBytes(d);
+            }
+            spareInputs = this.inputs;
+            spareOutputs = this.outputs;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.b = b;
+            this.offset = offset;
+            this.size = d.position() - offset;
+            this.coinbase = coinbase;
+            this.numInputs = numInputs;
+            this.numOutputs = numOutputs;
+            return this;
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated transaction", x);
+        }
+    }
+
+    private static void skipBytes(ByteBuffer d) {
+        int length = d.getInt();
+        if (length < -1 || length > d.remaining()) throw new IllegalArgumentException("bad length " + length);
+        if (length > 0) d.position(d.position() + length);
+    }
+
+    /** @return the length of the byte array at {@code at}, or -1 for null */
+    private int lengthAt(int at) {
+        return b.getInt(at);
+    }
+
+    /** @return a copy of the byte array at {@code at}, or null */
+    private byte[] bytesAt(int at) {
+        int length = b.getInt(at);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(at + 4);
+        d.get(bytes);
+        return bytes;
+    }
+
+    /** @return the position just after the byte array at {@code at} */
+    private int after(int at) {
+        return at + 4 + Math.max(0, b.getInt(at));
+    }
+
+    /** @return the number of bytes the transaction takes in the buffer */
+    public int size() {
+        return size;
+    }
+
+    public boolean isCoinbase() {
+        return coinbase;
+    }
+
+    public byte[] getHash() {
+        return bytesAt(offset + 1);
+    }
+
+    public int numInputs() {
+        return numInputs;
+    }
+
+    public byte[] getPrevTxHash(int index) {
+        return bytesAt(inputs[index]);
+    }
+
+    public int getOutputIndex(int index) {
+        return b.getInt(after(inputs[index]));
+    }
+
+    public byte[] getSignature(int index) {
+        return bytesAt(after(inputs[index]) + 4);
+    }
+
+    /** @return true if input {@code index} spends the same output as an input before it */
+    public boolean claimedBefore(int index) {
+        int at = inputs[index];
+        int outputIndex = getOutputIndex(index);
+        for (int i = 0; i < index; i++) {
+            if (getOutputIndex(i) == outputIndex && equalBytes(inputs[i], at)) return true;
+        }
+        return false;
+    }
+
+    /** @return true if the byte arrays at {@code x} and {@code y} are equal */
+    private boolean equalBytes(int x, int y) {
+        int length = b.getInt(x);
+        if (length != b.getInt(y)) return false;
+        for (int i = 0; i < length; i++) {
+            if (b.get(x + 4 + i) != b.get(y + 4 + i)) return false;
+        }
+        return true;
+    }
+
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    public double getValue(int index) {
+        return b.getDouble(outputs[index]);
+    }
+
+    /** @return the X.509 encoding of the address of output {@code index}, or null */
+    public byte[] getEncodedAddress(int index) {
+        return bytesAt(outputs[index] + 8);
+    }
+
+    /**
+     * @return the same bytes as {@code getRawOutputs()} of the transaction, taken from the
+     *         encoded addresses without decoding them
+     * @throws IllegalArgumentException if an address is not an RSA key
+     */
+    public byte[] getRawOutputs() {
+        int total = 0;
+        for (int i = 0; i < numOutputs; i++)
+            total += 8 + rsaKeyLength(outputs[i] + 8);
+        ByteBuffer raw = ByteBuffer.allocate(total);
+        for (int i = 0; i < numOutputs; i++) {
+            raw.putDouble(getValue(i));
+            putRSAKey(outputs[i] + 8, raw);
+        }
+        return raw.array();
+    }
+
+    /** Same as {@code getRawDataToSign(index, rawOutputs)} of the transaction */
+    public byte[] getRawDataToSign(int index, byte[] rawOutputs) {
+        int at = inputs[index];
+        int hashLength = Math.max(0, lengthAt(at));
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + 4 + rawOutputs.length);
+        ByteBuffer d = b.duplicate();
+        d.position(at + 4).limit(at + 4 + hashLength);
+        sigData.put(d);
+        sigData.putInt(getOutputIndex(index));
+        sigData.put(rawOutputs);
+        return sigData.array();
+    }
+
+    /**
+     * The address of an output is the DER encoding of a SubjectPublicKeyInfo, whose bit string
+     * holds the DER sequence of the modulus and the public exponent. Their contents are the same
+     * minimal two's complement bytes as {@code BigInteger.toByteArray()}, which is what
+     * {@code getRawOutputs()} writes, exponent first.
+     *
+     * @return {@code {exponent start, exponent length, modulus start, modulus length}} for the
+     *         address at {@code at}
+     */
+    private int[] rsaKey(int at) {
+        int length = lengthAt(at);
+        if (length < 0) throw new IllegalArgumentException("output without address");
+        int[] p = { at + 4 };
+        int end = at + 4 + length;
+        enter(p, 0x30, end); // SubjectPublicKeyInfo
+        p[0] = skip(p, 0x30, end); // AlgorithmIdentifier
+        enter(p, 0x03, end); // subjectPublicKey
+        if (b.get(p[0]++) != 0) throw new IllegalArgumentException("bad address");
+        enter(p, 0x30, end); // RSAPublicKey
+        int modulusLength = enter(p, 0x02, end);
+        int modulus = p[0];
+        p[0] += modulusLength;
+        int exponentLength = enter(p, 0x02, end);
+        return new int[] { p[0], exponentLength, modulus, modulusLength };
+    }
+
+    private int rsaKeyLength(int at) {
+        int[] key = rsaKey(at);
+        return key[1] + key[3];
+    }
+
+    private void putRSAKey(int at, ByteBuffer raw) {
+        int[] key = rsaKey(at);
+        ByteBuffer d = b.duplicate();
+        d.position(key[0]).limit(key[0] + key[1]);
+        raw.put(d);
+        d.limit(key[2] + key[3]).position(key[2]);
+        raw.put(d);
+    }
+
+    /**
+     * Reads the header of the DER element at {@code p[0]}, which must have tag {@code tag}, and
+     * moves {@code p[0]} to its contents
+     *
+     * @return the length of the contents
+     */
+    private int enter(int[] p, int tag, int end) {
+        if (p[0] + 2 > end || (b.get(p[0]) & 0xff) != tag) throw new IllegalArgumentException("bad address");
+        int length = b.get(p[0] + 1) & 0xff;
+        p[0] += 2;
+        if (length >= 0x80) {
+            int n = length & 0x7f;
+            if (n == 0 || n > 3 || p[0] + n > end) throw new IllegalArgumentException("bad address");
+            length = 0;
+            for (int i = 0; i < n; i++)
+                length = (length << 8) | (b.get(p[0]++) & 0xff);
+        }
+        if (p[0] + length > end) throw new IllegalArgumentException("bad address");
+        return length;
+    }
+
+    /** @return the position after the DER element at {@code p[0]} */
+    private int skip(int[] p, int tag, int end) {
+        int length = enter(p, tag, end);
+        return p[0] + length;
+    }
+
+    /** @return a new view of the same transaction, for keeping it while this one moves on */
+    public TransactionView copy() {
+        TransactionView copy = new TransactionView();
+        copy.b = b;
+        copy.offset = offset;
+        copy.size = size;
+        copy.coinbase = coinbase;
+        copy.numInputs = numInputs;
+        copy.numOutputs = numOutputs;
+        copy.inputs = Arrays.copyOf(inputs, numInputs);
+        copy.outputs = Arrays.copyOf(outputs, numOutputs);
+        return copy;
+    }
+}
@@ -1,9 +1,15 @@
-import java.util.HashSet;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class TxHandler {
 
     private UTXOPool unspentPool;
+    private ForkJoinPool verifierPool;
+    private BatchVerifier batch;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -28,19 +34,19 @@ public class TxHandler {
         // IMPLEMENT THIS
 
         double balance = 0;
-        HashSet<UTXO> used = new HashSet<>();
+        byte[] rawOutputs = null; // encoded on the first signature check, shared by all inputs
 
         for (int i = 0; i < tx.numInputs(); ++i) {
             Transaction.Input currentInput = tx.getInput(i);
-            UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
 
-            if (!unspentPool.contains(utxo)) return false; // condition (1)
+            // look the output up by hash and index, without building a UTXO
+            if (!unspentPool.contains(currentInput.prevTxHash, currentInput.outputIndex)) return false; // condition (1)
 
-            Transaction.Output previousOutput = unspentPool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(previousOutput.address, tx.getRawDataToSign(i), currentInput.signature)) return false; // condition (2)
+            Transaction.Output previousOutput = unspentPool.getTxOutput(currentInput.prevTxHash, currentInput.outputIndex);
+            if (rawOutputs == null && batch == null) rawOutputs = tx.getRawOutputs();
+            if (!verifySignature(tx, i, previousOutput, rawOutputs)) return false; // condition (2)
 
-            if (used.contains(utxo)) return false; // condition (3)
-            used.add(utxo);
+            if (claimedBefore(tx, i)) return false; // condition (3)
 
             balance += previousOutput.value;
         }
@@ -56,46 +62,395 @@ public class TxHandler {
         return true;
     }
 
+    /**
+     * Same as {@code isValidTx(Transaction)}, for a transaction read from its {@code WireFormat}
+     * encoding without decoding it. The data each signature covers is assembled from the encoded
+     * bytes, so the only keys involved are those of the outputs spent, already in the pool.
+     */
+    public boolean isValidTx(TransactionView tx) {
+        double balance = 0;
+        byte[] rawOutputs = null;
+
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            byte[] prevTxHash = tx.getPrevTxHash(i);
+            int outputIndex = tx.getOutputIndex(i);
+            if (prevTxHash == null) return false;
+
+            Transaction.Output previousOutput = unspentPool.getTxOutput(prevTxHash, outputIndex);
+            if (previousOutput == null) return false; // condition (1)
+
+            try {
+                if (rawOutputs == null) rawOutputs = tx.getRawOutputs();
+            } catch (IllegalArgumentException x) {
+                return false; // an output address that is not an RSA key
+            }
+            if (!SignatureCache.verifySignature(previousOutput, tx.getRawDataToSign(i, rawOutputs), tx.getSignature(i)))
+                return false; // condition (2)
+
+            if (tx.claimedBefore(i)) return false; // condition (3)
+
+            balance += previousOutput.value;
+        }
+
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            double value = tx.getValue(i);
+            if (value < 0) return false; // condition (4)
+            balance -= value;
+        }
+
+        if (balance < 0) return false; // condition (5)
+
+        return true;
+    }
+
+    /** Same as {@code isValidTx(Transaction)}, for transaction {@code tx} of {@code batch} */
+    public boolean isValidTx(TransactionBatch batch, int tx) {
+        double balance = 0;
+        byte[] rawOutputs = null;
+
+        for (int i = 0; i < batch.numInputs(tx); ++i) {
+            byte[] prevTxHash = batch.getPrevTxHash(tx, i);
+            if (prevTxHash == null) return false;
+
+            Transaction.Output previousOutput = unspentPool.getTxOutput(prevTxHash, batch.getOutputIndex(tx, i));
+            if (previousOutput == null) return false; // condition (1)
+
+            try {
+                if (rawOutputs == null) rawOutputs = batch.getRawOutputs(tx);
+            } catch (IllegalArgumentException x) {
+                return false;
+            }
+            if (!SignatureCache.verifySignature(previousOutput, batch.getRawDataToSign(tx, i, rawOutputs), batch.getSignature(tx, i)))
+                return false; // condition (2)
+
+            if (batch.claimedBefore(tx, i)) return false; // condition (3)
+
+            balance += previousOutput.value;
+        }
+
+        for (int i = 0; i < batch.numOutputs(tx); ++i) {
+            double value = batch.getValue(tx, i);
+            if (value < 0) return false; // condition (4)
+            balance -= value;
+        }
+
+        if (balance < 0) return false; // condition (5)
+
+        return true;
+    }
+
+    /** @return true if an input of {@code tx} before input {@code index} claims the same output */
+    private static boolean claimedBefore(Transaction tx, int index) {
+        Transaction.Input in = tx.getInput(index);
+        for (int i = 0; i < index; ++i) {
+            Transaction.Input other = tx.getInput(i);
+            if (other.outputIndex == in.outputIndex && Arrays.equals(other.prevTxHash, in.prevTxHash)) return true;
+        }
+        return false;
+    }
+
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output previousOutput, byte[] rawOutputs) {
+        if (batch != null) return batch.verify(tx, index, previousOutput);
+        return SignatureCache.verifySignature(previousOutput, tx.getRawDataToSign(index, rawOutputs), tx.getInput(index).signature);
+    }
+
+    /**
+     * Verifies the signatures of {@code possibleTxs} on the verifier pool ahead of the calls to
+     * {@code isValidTx} that will check them. Does nothing if no verifier pool is set.
+     */
+    public void verifySignatures(Transaction[] possibleTxs) {
+        if (verifierPool == null) return;
+        batch = new BatchVerifier(possibleTxs, unspentPool, verifierPool);
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>
+     * Each transaction is checked once, then again only when a transaction it waits for is
+     * accepted, so the cost is linear in the size of the batch whatever order it comes in.
      */
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+    public Transaction[] handleTxs(final Transaction[] possibleTxs) {
         // IMPLEMENT THIS
 
-        ArrayList<Transaction> acceptedTransactions = new ArrayList<>();
-
-        while (true) {
-            boolean foundSomething = false;
-            for (Transaction tx : possibleTxs) {
-                if (isValidTx(tx)) {
-                    acceptedTransactions.add(tx);
-                    foundSomething = true;
-                    // remove tx's input from unspentPool
-                    for (int i = 0; i < tx.numInputs(); ++i) {
-                        Transaction.Input currentInput = tx.getInput(i);
-                        UTXO utxo = new UTXO(currentInput.prevTxHash, currentInput.outputIndex);
-                        unspentPool.removeUTXO(utxo);
-                    }
-
-                    // add tx's output to unspentPool
-                    for (int i = 0; i < tx.numOutputs(); ++i) {
-                        Transaction.Output currentOutput = tx.getOutput(i);
-                        UTXO utxo = new UTXO(tx.getHash(), i);
-                        unspentPool.addUTXO(utxo, currentOutput);
-                    }
+        verifySignatures(possibleTxs);
+        final IdentityHashMap<Transaction, Integer> firstOf = new IdentityHashMap<>();
+        byte[][] hashes = new byte[possibleTxs.length][];
+        for (int t = 0; t < possibleTxs.length; ++t) {
+            if (!firstOf.containsKey(possibleTxs[t])) firstOf.put(possibleTxs[t], t);
+            hashes[t] = possibleTxs[t].getHash();
+        }
+        int[] accepted = schedule(new HashIndexed(hashes) {
+            int first(int tx) {
+                // the same transaction may be proposed more than once, and accepted only once
+                return firstOf.get(possibleTxs[tx]);
+            }
+
+            boolean isValid(int tx) {
+                return isValidTx(possibleTxs[tx]);
+            }
+
+            int numInputs(int tx) {
+                return possibleTxs[tx].numInputs();
+            }
+
+            byte[] getPrevTxHash(int tx, int index) {
+                return possibleTxs[tx].getInput(index).prevTxHash;
+            }
+
+            int getOutputIndex(int tx, int index) {
+                return possibleTxs[tx].getInput(index).outputIndex;
+            }
+
+            int numOutputs(int tx) {
+                return possibleTxs[tx].numOutputs();
+            }
+
+            Transaction.Output getOutput(int tx, int index) {
+                return possibleTxs[tx].getOutput(index);
+            }
+        });
+        batch = null;
+
+        Transaction[] result = new Transaction[accepted.length];
+        for (int i = 0; i < accepted.length; ++i)
+            result[i] = possibleTxs[accepted[i]];
+        return result;
+    }
+
+    /**
+     * Same as {@code handleTxs(Transaction[])}, for transactions read from their
+     * {@code WireFormat} encoding. Only the outputs of accepted transactions are decoded, by
+     * {@code format}, to be added to the pool. The views must be distinct objects.
+     */
+    public TransactionView[] handleTxs(final TransactionView[] possibleTxs, final WireFormat format) {
+        byte[][] hashes = new byte[possibleTxs.length][];
+        for (int t = 0; t < possibleTxs.length; ++t)
+            hashes[t] = possibleTxs[t].getHash();
+        int[] accepted = schedule(new HashIndexed(hashes) {
+            boolean isValid(int tx) {
+                return isValidTx(possibleTxs[tx]);
+            }
+
+            int numInputs(int tx) {
+                return possibleTxs[tx].numInputs();
+            }
+
+            byte[] getPrevTxHash(int tx, int index) {
+                return possibleTxs[tx].getPrevTxHash(index);
+            }
+
+            int getOutputIndex(int tx, int index) {
+                return possibleTxs[tx].getOutputIndex(index);
+            }
+
+            int numOutputs(int tx) {
+                return possibleTxs[tx].numOutputs();
+            }
+
+            Transaction.Output getOutput(int tx, int index) {
+                return format.getOutput(possibleTxs[tx], index);
+            }
+        });
+
+        TransactionView[] result = new TransactionView[accepted.length];
+        for (int i = 0; i < accepted.length; ++i)
+            result[i] = possibleTxs[accepted[i]];
+        return result;
+    }
+
+    /**
+     * Same as {@code handleTxs(Transaction[])}, for the transactions of {@code batch}
+     *
+     * @return the positions in the batch of the accepted transactions, in the order they were
+     *         accepted
+     */
+    public int[] handleTxs(final TransactionBatch batch) {
+        return schedule(new Candidates() {
+            int size() {
+                return batch.size();
+            }
+
+            boolean isValid(int tx) {
+                return isValidTx(batch, tx);
+            }
+
+            byte[] getHash(int tx) {
+                return batch.getHash(tx);
+            }
+
+            int canonical(int tx) {
+                return batch.canonical(tx);
+            }
+
+            int numInputs(int tx) {
+                return batch.numInputs(tx);
+            }
+
+            byte[] getPrevTxHash(int tx, int index) {
+                return batch.getPrevTxHash(tx, index);
+            }
+
+            int getOutputIndex(int tx, int index) {
+                return batch.getOutputIndex(tx, index);
+            }
+
+            int getPrevTx(int tx, int index) {
+                return batch.getPrevTx(tx, index);
+            }
+
+            int numOutputs(int tx) {
+                return batch.numOutputs(tx);
+            }
+
+            Transaction.Output getOutput(int tx, int index) {
+                return batch.getOutput(tx, index);
+            }
+        });
+    }
+
+    /**
+     * The transactions proposed to {@code handleTxs}, by position, whatever form they come in. An
+     * output created in the batch is known by the position of the first transaction with the hash
+     * of the transaction creating it.
+     */
+    private abstract class Candidates {
+        abstract int size();
+
+        /** @return the first position holding the very same transaction as {@code tx} */
+        int first(int tx) {
+            return tx;
+        }
+
+        abstract boolean isValid(int tx);
+
+        abstract byte[] getHash(int tx);
+
+        /** @return the first position of a transaction with the same hash as {@code tx} */
+        abstract int canonical(int tx);
+
+        abstract int numInputs(int tx);
+
+        abstract byte[] getPrevTxHash(int tx, int index);
+
+        abstract int getOutputIndex(int tx, int index);
+
+        /**
+         * @return the position of the transaction creating the output input {@code index} of
+         *         {@code tx} spends, or -1 if none in the batch does
+         */
+        abstract int getPrevTx(int tx, int index);
+
+        abstract int numOutputs(int tx);
+
+        abstract Transaction.Output getOutput(int tx, int index);
+    }
+
+    /** Candidates located by a table from their hashes to their positions */
+    private abstract class HashIndexed extends Candidates {
+        private byte[][] hashes;
+        private HashMap<ByteArrayWrapper, Integer> positions = new HashMap<>();
+
+        HashIndexed(byte[][] hashes) {
+            this.hashes = hashes;
+            for (int t = 0; t < hashes.length; ++t) {
+                if (hashes[t] == null) continue;
+                ByteArrayWrapper hash = new ByteArrayWrapper(hashes[t]);
+                if (!positions.containsKey(hash)) positions.put(hash, t);
+            }
+        }
+
+        int size() {
+            return hashes.length;
+        }
+
+        byte[] getHash(int tx) {
+            return hashes[tx];
+        }
+
+        int canonical(int tx) {
+            return hashes[tx] == null ? tx : positions.get(new ByteArrayWrapper(hashes[tx]));
+        }
+
+        int getPrevTx(int tx, int index) {
+            Integer position = positions.get(new ByteArrayWrapper(getPrevTxHash(tx, index)));
+            return position == null ? -1 : position;
+        }
+    }
+
+    /**
+     * Accepts the candidates that are valid, alone or after others of the batch, updating the
+     * pool as it goes. Each candidate is checked once, then again only when a transaction
+     * creating an output it waits for is accepted, so the cost is linear in the size of the batch
+     * whatever order it comes in.
+     *
+     * @return the positions of the accepted candidates, in the order they were accepted
+     */
+    private int[] schedule(Candidates candidates) {
+        int n = candidates.size();
+        int[] acceptedTransactions = new int[n];
+        int numAccepted = 0;
+        boolean[] accepted = new boolean[n];
+
+        // a candidate missing an output another one creates waits for it, instead of being
+        // retried on every sweep
+        HashMap<Long, ArrayList<Integer>> waiting = new HashMap<>();
+        ArrayDeque<Integer> ready = new ArrayDeque<>(n);
+        for (int tx = 0; tx < n; ++tx)
+            ready.add(tx);
+
+        while (!ready.isEmpty()) {
+            int tx = ready.poll();
+            if (accepted[candidates.first(tx)]) continue;
+            if (candidates.isValid(tx)) {
+                accepted[candidates.first(tx)] = true;
+                acceptedTransactions[numAccepted++] = tx;
+                // remove tx's input from unspentPool
+                for (int i = 0; i < candidates.numInputs(tx); ++i)
+                    unspentPool.removeUTXO(new UTXO(candidates.getPrevTxHash(tx, i), candidates.getOutputIndex(tx, i)));
+
+                // add tx's output to unspentPool and wake the candidates waiting for it
+                byte[] hash = candidates.getHash(tx);
+                for (int i = 0; i < candidates.numOutputs(tx); ++i) {
+                    unspentPool.addUTXO(new UTXO(hash, i), candidates.getOutput(tx, i));
+                    ArrayList<Integer> dependants = waiting.remove(outputKey(candidates.canonical(tx), i));
+                    if (dependants != null) ready.addAll(dependants);
+                }
+            } else {
+                // wait for the first missing output the batch may still create, if any
+                for (int i = 0; i < candidates.numInputs(tx); ++i) {
+                    byte[] prevTxHash = candidates.getPrevTxHash(tx, i);
+                    if (prevTxHash == null) break;
+                    if (unspentPool.contains(prevTxHash, candidates.getOutputIndex(tx, i))) continue;
+                    int parent = candidates.getPrevTx(tx, i);
+                    if (parent < 0) break;
+                    long key = outputKey(parent, candidates.getOutputIndex(tx, i));
+                    if (!waiting.containsKey(key)) waiting.put(key, new ArrayList<Integer>());
+                    waiting.get(key).add(tx);
+                    break;
                 }
             }
-            if (!foundSomething) break;
         }
 
-        Transaction[] result = new Transaction[acceptedTransactions.size()];
-        acceptedTransactions.toArray(result);
-        return result;
+        return Arrays.copyOf(acceptedTransactions, numAccepted);
+    }
+
+    private static long outputKey(int tx, int index) {
+        return ((long) tx << 32) | (index & 0xffffffffL);
     }
 
     public UTXOPool getUTXOPool() {
         return unspentPool;
     }
+
+    /**
+     * Verifies the signatures of each batch of transactions on {@code pool}, in parallel. The
+     * accepted transactions are the same as with serial verification, which a null {@code pool}
+     * restores.
+     */
+    public void setVerifierPool(ForkJoinPool pool) {
+        verifierPool = pool;
+    }
 }
@@ -8,6 +8,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** {@code hashCode()}, computed once since neither field changes */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -15,6 +18,7 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = hashCode(txHash, index);
     }
 
     /** @return the transaction hash of this UTXO */
@@ -56,12 +60,22 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hash;
+    }
+
+    /** @return the hash code of the UTXO {@code (txHash, index)}, without creating it */
+    public static int hashCode(byte[] txHash, int index) {
         int hash = 1;
         hash = hash * 17 + index;
         hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
+    /** @return true if this UTXO is the output with index {@code index} of transaction {@code txHash} */
+    public boolean equals(byte[] txHash, int index) {
+        return this.index == index && Arrays.equals(this.txHash, txHash);
+    }
+
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
         byte[] hash = utxo.txHash;
@@ -1,26 +1,46 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * By default copies of a pool share the parts of this map that neither of them has changed.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new PersistentUTXOMap();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, in constant time for the default store */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
     }
 
-    /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
+    /** Creates a new UTXOPool holding the UTXOs of {@code store}, which it takes ownership of */
+    public UTXOPool(UTXOStore store) {
+        H = store;
+    }
+
+    /**
+     * Makes the pool read-only, so that any number of threads may read and copy it at once.
+     * Only the default store can be frozen.
+     *
+     * @throws UnsupportedOperationException if the pool is kept in another store
+     */
+    public void freeze() {
+        if (!(H instanceof PersistentUTXOMap)) throw new UnsupportedOperationException("only the default store can be frozen");
+        ((PersistentUTXOMap) H).freeze();
+    }
+
+    /**
+     * Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool, and
+     * interns the address of {@code txOut} in the shared {@code AddressTable}
+     */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (txOut != null)
+            txOut.intern();
         H.put(utxo, txOut);
     }
 
@@ -34,21 +54,39 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return H.get(ut.getTxHash(), ut.getIndex());
+    }
+
+    /**
+     * @return the output with index {@code index} of transaction {@code txHash}, or null if it is
+     *         not in the pool. Same as {@code getTxOutput(new UTXO(txHash, index))}.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return H.get(txHash, index);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /** Same as {@code contains(new UTXO(txHash, index))} */
+    public boolean contains(byte[] txHash, int index) {
+        return H.contains(txHash, index);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** Makes the changes to the pool durable, if it is backed by a store on disk */
+    public void commit() {
+        H.commit();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
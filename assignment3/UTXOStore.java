@@ -0,0 +1,32 @@
+import java.util.ArrayList;
+
+/**
+ * The map from UTXOs to transaction outputs behind a {@code UTXOPool}. Lookups take the
+ * transaction hash and output index directly, so that checking an input does not have to build
+ * a {@code UTXO} first.
+ */
+public interface UTXOStore {
+
+    /** @return the output with index {@code index} of transaction {@code txHash}, or null */
+    Transaction.Output get(byte[] txHash, int index);
+
+    /** @return true if the output with index {@code index} of transaction {@code txHash} is stored */
+    boolean contains(byte[] txHash, int index);
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any previous mapping */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping of {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    int size();
+
+    /** @return all UTXOs in the store */
+    ArrayList<UTXO> keys();
+
+    /** @return a store with the same contents that can be modified independently of this one */
+    UTXOStore copy();
+
+    /** Makes the changes since the last commit durable, for stores that outlive the process */
+    void commit();
+}
@@ -0,0 +1,229 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+
+/**
+ * A self-delimiting binary encoding of transactions and blocks, for storing them on disk. Unlike
+ * {@code getRawTx()}, which is only meant to be hashed, it records the length of every field so
+ * it can be read back. Every byte array is written as its length followed by its bytes, or as
+ * length -1 for null; addresses are written in their X.509 encoding.
+ *
+ * <pre>
+ * transaction: coinbase flag (1) | hash | inputs (4) | input* | outputs (4) | output*
+ * input:       prevTxHash | outputIndex (4) | signature
+ * output:      value (8) | address
+ * block:       hash | prevBlockHash | coinbase transaction | transactions (4) | transaction*
+ * </pre>
+ *
+ * Decoding addresses is by far the slowest part of reading, so a {@code WireFormat} keeps the
+ * addresses it has decoded. It is not thread-safe. {@code TransactionView} and {@code BlockView}
+ * read the same encoding in place, without decoding addresses at all.
+ */
+public class WireFormat {
+
+    /** the owner of every output decoded from a view */
+    private static final Transaction decoded = new Transaction();
+
+    private KeyFactory keyFactory;
+    private HashMap<ByteArrayWrapper, PublicKey> addresses = new HashMap<ByteArrayWrapper, PublicKey>();
+
+    public WireFormat() {
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer b, byte[] bytes) {
+        if (bytes == null) {
+            b.putInt(-1);
+        } else {
+            b.putInt(bytes.length);
+            b.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer b) {
+        int length = b.getInt();
+        if (length < -1 || length > b.remaining()) throw new IllegalArgumentException("bad length " + length);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return bytes;
+    }
+
+    private static void skipBytes(ByteBuffer b) {
+        int length = b.getInt();
+        if (length < -1 || length > b.remaining()) throw new IllegalArgumentException("bad length " + length);
+        if (length > 0) b.position(b.position() + length);
+    }
+
+    private static byte[] encodedAddress(Transaction.Output out) {
+        return out.getEncodedAddress();
+    }
+
+    /** @return the number of bytes {@code tx} takes */
+    public static int sizeOf(Transaction tx) {
+        int size = 1 + sizeOf(tx.getHash()) + 4 + 4;
+        for (Transaction.Input in : tx.getInputs())
+            size += sizeOf(in.prevTxHash) + 4 + sizeOf(in.signature);
+        for (Transaction.Output out : tx.getOutputs())
+            size += 8 + sizeOf(encodedAddress(out));
+        return size;
+    }
+
+    /** Writes {@code tx} at the position of {@code b} */
+    public static void put(ByteBuffer b, Transaction tx) {
+        b.put((byte) (tx.isCoinbase() ? 1 : 0));
+        putBytes(b, tx.getHash());
+        b.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(b, in.prevTxHash);
+            b.putInt(in.outputIndex);
+            putBytes(b, in.signature);
+        }
+        b.putInt(tx.numOutputs());
+        for (Transaction.Output out : tx.getOutputs()) {
+            b.putDouble(out.value);
+            putBytes(b, encodedAddress(out));
+        }
+    }
+
+    /** @return the encoding of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer b = ByteBuffer.allocate(sizeOf(tx));
+        put(b, tx);
+        return b.array();
+    }
+
+    /** @return the number of bytes {@code block} takes */
+    public static int sizeOf(Block block) {
+        int size = sizeOf(block.getHash()) + sizeOf(block.getPrevBlockHash()) + sizeOf(block.getCoinbase()) + 4;
+        for (Transaction tx : block.getTransactions())
+            size += sizeOf(tx);
+        return size;
+    }
+
+    /** Writes {@code block} at the position of {@code b} */
+    public static void put(ByteBuffer b, Block block) {
+        putBytes(b, block.getHash());
+        putBytes(b, block.getPrevBlockHash());
+        put(b, block.getCoinbase());
+        b.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            put(b, tx);
+    }
+
+    /** @return the encoding of {@code block} */
+    public static byte[] encode(Block block) {
+        ByteBuffer b = ByteBuffer.allocate(sizeOf(block));
+        put(b, block);
+        return b.array();
+    }
+
+    private PublicKey address(byte[] encoded) {
+        if (encoded == null) return null;
+        ByteArrayWrapper key = new ByteArrayWrapper(encoded);
+        PublicKey address = addresses.get(key);
+        if (address == null) {
+            try {
+                address = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException x) {
+                throw new IllegalArgumentException("bad address", x);
+            }
+            addresses.put(key, address);
+        }
+        return address;
+    }
+
+    /**
+     * @return output {@code index} of {@code tx}, with its address decoded
+     * @throws IllegalArgumentException if the address is not a valid key
+     */
+    public Transaction.Output getOutput(TransactionView tx, int index) {
+        return decoded.new Output(tx.getValue(index), address(tx.getEncodedAddress(index)));
+    }
+
+    /**
+     * Reads the transaction at the position of {@code b}, leaving it just after
+     *
+     * @throws IllegalArgumentException if the bytes are not a transaction
+     */
+    public Transaction getTransaction(ByteBuffer b) {
+        try {
+            boolean coinbase = b.get() == 1;
+            byte[] hash = getBytes(b);
+            int numInputs = b.getInt();
+            if (coinbase && numInputs != 0) throw new IllegalArgumentException("coinbase with inputs");
+            Transaction tx = new Transaction();
+            for (int i = 0; i < numInputs; i++) {
+                tx.addInput(getBytes(b), b.getInt());
+                tx.addSignature(getBytes(b), i);
+            }
+            int numOutputs = b.getInt();
+            if (coinbase) {
+                if (numOutputs != 1) throw new IllegalArgumentException("coinbase with " + numOutputs + " outputs");
+                double value = b.getDouble();
+                return new Transaction(value, address(getBytes(b)));
+            }
+            for (int i = 0; i < numOutputs; i++) {
+                double value = b.getDouble();
+                tx.addOutput(value, address(getBytes(b)));
+            }
+            tx.setHash(hash);
+            return tx;
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated transaction", x);
+        }
+    }
+
+    /**
+     * Reads the block at the position of {@code b}, leaving it just after
+     *
+     * @throws IllegalArgumentException if the bytes are not a block
+     */
+    public Block getBlock(ByteBuffer b) {
+        try {
+            getBytes(b); // the hash, which finalize computes again
+            byte[] prevBlockHash = getBytes(b);
+            Transaction coinbase = getTransaction(b);
+            if (!coinbase.isCoinbase()) throw new IllegalArgumentException("block without coinbase");
+            Block block = new Block(prevBlockHash, coinbase.getOutput(0).address);
+            int numTxs = b.getInt();
+            for (int i = 0; i < numTxs; i++)
+                block.addTransaction(getTransaction(b));
+            block.finalize();
+            return block;
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated block", x);
+        }
+    }
+
+    /** @return the hash of the transaction at the position of {@code b}, leaving it just after */
+    public static byte[] skipTransaction(ByteBuffer b) {
+        b.get();
+        byte[] hash = getBytes(b);
+        int numInputs = b.getInt();
+        for (int i = 0; i < numInputs; i++) {
+            skipBytes(b);
+            b.getInt();
+            skipBytes(b);
+        }
+        int numOutputs = b.getInt();
+        for (int i = 0; i < numOutputs; i++) {
+            b.getDouble();
+            skipBytes(b);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+
+/**
+ * Benchmarks of assignment 1: the UTXO pool, and {@code handleTxs} of {@code TxHandler} and
+ * {@code MaxFeeTxHandler} across batch size, dependency depth and double-spend ratio. Each
+ * iteration hands a fresh handler the same batch, so the figures include every signature check.
+ */
+public class HandlerBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench("assignment1", args);
+        Workload workload = new Workload(64, 1024, 1);
+
+        int[] batchSizes = bench.quick() ? new int[] { 50 } : new int[] { 100, 1000 };
+        int[] depths = bench.quick() ? new int[] { 1, 4 } : new int[] { 1, 4, 16 };
+        double[] doubleSpendRatios = { 0, 0.1 };
+
+        for (int size : bench.quick() ? new int[] { 1000 } : new int[] { 10000, 100000 })
+            utxoPool(bench, workload, size);
+
+        for (int size : batchSizes) {
+            for (int depth : depths) {
+                for (double ratio : doubleSpendRatios) {
+                    final UTXOPool pool = new UTXOPool();
+                    final Transaction[] batch = workload.batch(workload.fund(pool, size, 10), size, depth, ratio);
+                    final int accepted = new TxHandler(pool).handleTxs(batch).length;
+
+                    bench.run("TxHandler.handleTxs", Bench.params("batchSize", size, "depth", depth, "doubleSpendRatio", ratio), new Bench.Case() {
+                        TxHandler handler;
+
+                        public void setup() {
+                            handler = new TxHandler(pool);
+                        }
+
+                        public Object run() {
+                            return handler.handleTxs(batch);
+                        }
+
+                        public long operations() {
+                            return batch.length;
+                        }
+                    });
+                    bench.run("MaxFeeTxHandler.handleTxs", Bench.params("batchSize", size, "depth", depth, "doubleSpendRatio", ratio), new Bench.Case() {
+                        MaxFeeTxHandler handler;
+
+                        public void setup() {
+                            handler = new MaxFeeTxHandler(pool);
+                        }
+
+                        public Object run() {
+                            return handler.handleTxs(batch);
+                        }
+
+                        public long operations() {
+                            return batch.length;
+                        }
+                    });
+                    System.err.println("  (" + accepted + " of " + batch.length + " acceptable)");
+                }
+            }
+        }
+        bench.write();
+    }
+
+    /** Adding, looking up and copying {@code size} UTXOs */
+    private static void utxoPool(Bench bench, Workload workload, final int size) throws Exception {
+        final UTXOPool funded = new UTXOPool();
+        final ArrayList<Workload.Coin> coins = workload.fund(funded, size, 1);
+        final UTXO[] utxos = new UTXO[size];
+        for (int i = 0; i < size; i++)
+            utxos[i] = new UTXO(coins.get(i).tx.getHash(), coins.get(i).index);
+
+        bench.run("UTXOPool.addUTXO", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                UTXOPool pool = new UTXOPool();
+                for (int i = 0; i < size; i++)
+                    pool.addUTXO(utxos[i], coins.get(i).output());
+                return pool;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("UTXOPool.contains", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                int found = 0;
+                for (UTXO utxo : utxos) {
+                    if (funded.contains(utxo)) found++;
+                }
+                return found;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("UTXOPool.copy", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                return new UTXOPool(funded);
+            }
+        });
+    }
+}
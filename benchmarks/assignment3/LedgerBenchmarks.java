@@ -0,0 +1,821 @@
+import com.sun.management.ThreadMXBean;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of assignment 3: the UTXO pool and the {@code CompactUTXOIndex} store, each against
+ * a plain {@code HashMap<UTXO, Transaction.Output>}, {@code TxHandler.handleTxs} on objects, views
+ * and columnar batches, signature verification with and without per-key verifiers, parallel
+ * block validation, {@code BlockChain.addBlock} across fork widths,
+ * {@code BlockHandler.createBlock} and the block template behind it, hashing, the bytes allocated
+ * to serialize what signatures cover, the memory of a {@code TransactionBatch}, snapshot loading,
+ * and read latency of a {@code ConcurrentBlockChain} under writes.
+ *
+ * <p>
+ * The shared signature cache is cleared before every timed iteration that checks signatures, so
+ * each one pays for them. Benchmarks of the transaction pool and the template sign with 512 bit
+ * keys, so that building mempools of 100k transactions takes seconds rather than minutes.
+ *
+ * <p>
+ * {@code Bench} is a hand-rolled harness rather than JMH, with no forks and no blackhole, so these
+ * numbers are for tracking this suite across changes, not JMH-grade measurements.
+ */
+public class LedgerBenchmarks {
+
+    private static Bench bench;
+    private static Workload workload;
+    private static Workload cheapWorkload;
+    private static KeyPairGenerator minerKeys;
+
+    public static void main(String[] args) throws Exception {
+        bench = new Bench("assignment3", args);
+        workload = new Workload(64, 1024, 1);
+        cheapWorkload = new Workload(64, 512, 2);
+        minerKeys = KeyPairGenerator.getInstance("RSA");
+        minerKeys.initialize(512);
+        boolean quick = bench.quick();
+
+        for (int size : quick ? new int[] { 1000 } : new int[] { 10000, 100000 }) {
+            utxoPool(size);
+            compactIndex(size);
+        }
+
+        // every key signs at least twice, so that cold keys cycle through the cached verifiers
+        for (int keys : new int[] { 4, 2 * Crypto.VERIFIERS_PER_THREAD })
+            verify(Math.max(quick ? 200 : 2000, 2 * keys), keys);
+
+        for (int size : quick ? new int[] { 50 } : new int[] { 100, 1000 }) {
+            for (int depth : quick ? new int[] { 1, 4 } : new int[] { 1, 4, 16 }) {
+                for (double ratio : new double[] { 0, 0.1 })
+                    handleTxs(size, depth, ratio);
+            }
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2)
+            validate(quick ? 200 : 2000, threads);
+
+        for (int txsPerBlock : quick ? new int[] { 10 } : new int[] { 10, 100 }) {
+            for (int forkWidth : quick ? new int[] { 1, 2 } : new int[] { 1, 2, 4 })
+                addBlock(txsPerBlock, forkWidth, quick ? 4 : 16);
+        }
+
+        for (int mempool : quick ? new int[] { 100 } : new int[] { 100, 1000, 10000 })
+            createBlock(mempool);
+        for (int mempool : quick ? new int[] { 1000 } : new int[] { 10000, 100000 })
+            template(mempool);
+
+        for (int size : quick ? new int[] { 10000 } : new int[] { 10000, 100000 }) {
+            for (int threads = 1; threads <= cores; threads *= 2)
+                hashing(size, threads);
+            batchMemory(size);
+        }
+        serialization(quick ? 1000 : 10000);
+
+        snapshotLoad(quick ? 50000 : 1000000);
+
+        for (int readers : quick ? new int[] { 2 } : new int[] { 1, 4 })
+            concurrentReads(readers, quick ? 1000 : 5000);
+
+        bench.write();
+    }
+
+    /** @return a block on {@code parent}, mined by a key of its own so that coinbases never collide */
+    private static Block block(byte[] parent, Transaction[] txs) {
+        Block block = new Block(parent, minerKeys.generateKeyPair().getPublic());
+        for (Transaction tx : txs)
+            block.addTransaction(tx);
+        block.finalize();
+        return block;
+    }
+
+    /**
+     * Builds the block after {@code parent} that splits its coinbase into {@code count} outputs,
+     * in two levels of at most 1000 outputs per transaction
+     *
+     * @return the block; {@code coins} receives the outputs
+     */
+    private static Block fanOut(Workload workload, Block parent, int count, List<Workload.Coin> coins) throws GeneralSecurityException {
+        int groups = (count + 999) / 1000;
+        Transaction split = workload.spend(new Workload.Coin(parent.getCoinbase(), 0), groups, 0);
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        txs.add(split);
+        for (int g = 0; g < groups; g++) {
+            Transaction tx = workload.spend(new Workload.Coin(split, g), Math.min(1000, count - 1000 * g), 0);
+            txs.add(tx);
+            coins.addAll(Workload.coins(tx));
+        }
+        return block(parent.getHash(), txs.toArray(new Transaction[0]));
+    }
+
+    private static Block genesis(Workload workload) {
+        // the workload must own the coinbase to spend it
+        Block genesis = new Block(null, workload.address());
+        genesis.finalize();
+        return genesis;
+    }
+
+    /** Adding, looking up and copying {@code size} UTXOs */
+    private static void utxoPool(final int size) throws Exception {
+        final UTXOPool funded = new UTXOPool();
+        final ArrayList<Workload.Coin> coins = workload.fund(funded, size, 1);
+        final UTXO[] utxos = new UTXO[size];
+        for (int i = 0; i < size; i++)
+            utxos[i] = new UTXO(coins.get(i).tx.getHash(), coins.get(i).index);
+        // the baseline: the map a pool kept its UTXOs in, and copied whole
+        final HashMap<UTXO, Transaction.Output> map = new HashMap<UTXO, Transaction.Output>();
+        for (int i = 0; i < size; i++)
+            map.put(utxos[i], coins.get(i).output());
+
+        bench.run("UTXOPool.addUTXO", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                UTXOPool pool = new UTXOPool();
+                for (int i = 0; i < size; i++)
+                    pool.addUTXO(utxos[i], coins.get(i).output());
+                return pool;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("UTXOPool.contains", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                int found = 0;
+                for (UTXO utxo : utxos) {
+                    if (funded.contains(utxo)) found++;
+                }
+                return found;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("UTXOPool.copyAndRemove", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                // a copy is O(1); the first removals pay for the paths they copy
+                UTXOPool copy = new UTXOPool(funded);
+                for (int i = 0; i < 100; i++)
+                    copy.removeUTXO(utxos[i * (size / 100)]);
+                return copy;
+            }
+        });
+        bench.run("UTXOPool.copyAndRemove.HashMap", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                HashMap<UTXO, Transaction.Output> copy = new HashMap<UTXO, Transaction.Output>(map);
+                for (int i = 0; i < 100; i++)
+                    copy.remove(utxos[i * (size / 100)]);
+                return copy;
+            }
+        });
+    }
+
+    /**
+     * Heap per entry and lookups of {@code size} UTXOs in a {@code CompactUTXOIndex}, and in the
+     * {@code HashMap<UTXO, Transaction.Output>} it replaces, which needs a {@code UTXO} per lookup
+     */
+    private static void compactIndex(final int size) throws Exception {
+        final ArrayList<Workload.Coin> coins = workload.fund(new UTXOPool(), size, 1);
+        final byte[][] txHashes = new byte[size][];
+        final int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            txHashes[i] = coins.get(i).tx.getHash();
+            indices[i] = coins.get(i).index;
+        }
+
+        // the outputs exist already, so each figure is the store and its keys alone
+        long base = usedHeap();
+        final HashMap<UTXO, Transaction.Output> map = new HashMap<UTXO, Transaction.Output>();
+        for (int i = 0; i < size; i++)
+            map.put(new UTXO(txHashes[i], indices[i]), coins.get(i).output());
+        long mapBytes = usedHeap() - base;
+        final CompactUTXOIndex index = new CompactUTXOIndex();
+        for (int i = 0; i < size; i++)
+            index.put(new UTXO(txHashes[i], indices[i]), coins.get(i).output());
+        long indexBytes = usedHeap() - base - mapBytes;
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        secondary.put("HashMap<UTXO, Transaction.Output>", new double[] { (double) mapBytes / size });
+        bench.record("CompactUTXOIndex.heap", Bench.params("utxos", size), new double[] { (double) indexBytes / size },
+                "B/UTXO", secondary, "B/UTXO");
+
+        bench.run("CompactUTXOIndex.get", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                int found = 0;
+                for (int i = 0; i < size; i++) {
+                    if (index.get(txHashes[i], indices[i]) != null) found++;
+                }
+                return found;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("CompactUTXOIndex.get.HashMap", Bench.params("utxos", size), new Bench.Case() {
+            public Object run() {
+                int found = 0;
+                for (int i = 0; i < size; i++) {
+                    if (map.get(new UTXO(txHashes[i], indices[i])) != null) found++;
+                }
+                return found;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+    }
+
+    /**
+     * Verifying {@code size} signatures made by {@code numKeys} keys in turn: with a new
+     * {@code Signature} per call as {@code Crypto} used to, with the per-key verifiers of
+     * {@code Crypto.verifySignature} and with {@code Crypto.verifyAll}. With more keys than a
+     * thread keeps verifiers for, every call misses and pays for {@code initVerify} again.
+     */
+    private static void verify(final int size, int numKeys) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair[] keys = new KeyPair[numKeys];
+        for (int k = 0; k < numKeys; k++) {
+            keys[k] = generator.generateKeyPair();
+            // verifiers are kept for the keys of UTXO pools, which are interned
+            AddressTable.getShared().intern(keys[k].getPublic());
+        }
+        final ArrayList<Crypto.SignedMessage> messages = new ArrayList<Crypto.SignedMessage>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] message = new byte[128];
+            workload.random().nextBytes(message);
+            Signature signer = Signature.getInstance("SHA256withRSA");
+            signer.initSign(keys[i % numKeys].getPrivate());
+            signer.update(message);
+            messages.add(new Crypto.SignedMessage(keys[i % numKeys].getPublic(), message, signer.sign()));
+        }
+
+        LinkedHashMap<String, String> params = Bench.params("signatures", size, "keys", numKeys);
+        bench.run("Crypto.verifySignature.getInstance", params, new Bench.Case() {
+            public Object run() throws Exception {
+                int valid = 0;
+                for (Crypto.SignedMessage m : messages) {
+                    Signature sig = Signature.getInstance("SHA256withRSA");
+                    sig.initVerify(m.pubKey);
+                    sig.update(m.message);
+                    if (sig.verify(m.signature)) valid++;
+                }
+                return valid;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("Crypto.verifySignature", params, new Bench.Case() {
+            public Object run() {
+                int valid = 0;
+                for (Crypto.SignedMessage m : messages) {
+                    if (Crypto.verifySignature(m.pubKey, m.message, m.signature)) valid++;
+                }
+                return valid;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("Crypto.verifyAll", params, new Bench.Case() {
+            public Object run() {
+                return Crypto.verifyAll(messages).cardinality();
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+    }
+
+    /** {@code TxHandler.handleTxs} over the same batch as objects, views and a columnar batch */
+    private static void handleTxs(int size, int depth, double ratio) throws Exception {
+        final UTXOPool pool = new UTXOPool();
+        final Transaction[] batch = workload.batch(workload.fund(pool, size, 10), size, depth, ratio);
+        final TransactionBatch columns = new TransactionBatch(Arrays.asList(batch));
+        final TransactionView[] views = new TransactionView[batch.length];
+        final WireFormat format = new WireFormat();
+        for (int i = 0; i < batch.length; i++)
+            views[i] = new TransactionView().wrap(ByteBuffer.wrap(WireFormat.encode(batch[i])), 0);
+        LinkedHashMap<String, String> params = Bench.params("batchSize", size, "depth", depth, "doubleSpendRatio", ratio);
+
+        bench.run("TxHandler.handleTxs", params, new Bench.Case() {
+            TxHandler handler;
+
+            public void setup() {
+                SignatureCache.getShared().clear();
+                handler = new TxHandler(pool);
+            }
+
+            public Object run() {
+                return handler.handleTxs(batch);
+            }
+
+            public long operations() {
+                return batch.length;
+            }
+        });
+        bench.run("TxHandler.handleTxs.views", params, new Bench.Case() {
+            TxHandler handler;
+
+            public void setup() {
+                SignatureCache.getShared().clear();
+                handler = new TxHandler(pool);
+            }
+
+            public Object run() {
+                return handler.handleTxs(views, format);
+            }
+
+            public long operations() {
+                return batch.length;
+            }
+        });
+        bench.run("TxHandler.handleTxs.batch", params, new Bench.Case() {
+            TxHandler handler;
+
+            public void setup() {
+                SignatureCache.getShared().clear();
+                handler = new TxHandler(pool);
+            }
+
+            public Object run() {
+                return handler.handleTxs(columns);
+            }
+
+            public long operations() {
+                return batch.length;
+            }
+        });
+    }
+
+    /** {@code BlockValidator.validate} of a block of independent transactions on {@code threads} threads */
+    private static void validate(int size, int threads) throws Exception {
+        final UTXOPool pool = new UTXOPool();
+        final Transaction[] txs = workload.batch(workload.fund(pool, size, 10), size, 1, 0);
+        final BlockValidator validator = new BlockValidator(new ForkJoinPool(threads));
+
+        bench.run("BlockValidator.validate", Bench.params("batchSize", size, "threads", threads), new Bench.Case() {
+            public void setup() {
+                SignatureCache.getShared().clear();
+            }
+
+            public Object run() {
+                return validator.validate(pool, txs);
+            }
+
+            public long operations() {
+                return txs.length;
+            }
+        });
+    }
+
+    /**
+     * {@code BlockChain.addBlock} of {@code heights} heights of {@code forkWidth} sibling blocks
+     * each, the first of which the next height builds on
+     */
+    private static void addBlock(int txsPerBlock, int forkWidth, int heights) throws Exception {
+        final Block genesis = genesis(workload);
+        ArrayList<Workload.Coin> coins = new ArrayList<Workload.Coin>();
+        final Block funding = fanOut(workload, genesis, txsPerBlock * heights, coins);
+
+        final ArrayList<Block> blocks = new ArrayList<Block>();
+        Block parent = funding;
+        for (int h = 0; h < heights; h++) {
+            List<Workload.Coin> sources = coins.subList(h * txsPerBlock, (h + 1) * txsPerBlock);
+            Block main = null;
+            for (int w = 0; w < forkWidth; w++) {
+                // siblings spend the same outputs, with different fees
+                Block block = block(parent.getHash(), workload.batch(sources, txsPerBlock, 1, 0));
+                blocks.add(block);
+                if (main == null) main = block;
+            }
+            parent = main;
+        }
+
+        bench.run("BlockChain.addBlock", Bench.params("batchSize", txsPerBlock, "forkWidth", forkWidth), new Bench.Case() {
+            BlockChain chain;
+
+            public void setup() {
+                SignatureCache.getShared().clear();
+                chain = new BlockChain(genesis);
+                chain.addBlock(funding);
+            }
+
+            public Object run() {
+                for (Block block : blocks) {
+                    if (!chain.addBlock(block)) throw new IllegalStateException("block rejected");
+                }
+                return chain;
+            }
+
+            public long operations() {
+                return blocks.size();
+            }
+        });
+    }
+
+    /**
+     * @return a chain whose tip is a fan-out block, with {@code mempool} transactions pending,
+     *         processed by {@code handler}
+     */
+    private static Object[] chainWithMempool(Block genesis, Block funding, Transaction[] pending, boolean template) {
+        BlockChain chain = new BlockChain(genesis);
+        chain.addBlock(funding);
+        BlockHandler handler = template ? new BlockHandler(chain) : new BlockHandler(chain, Integer.MAX_VALUE);
+        for (Transaction tx : pending)
+            handler.processTx(tx);
+        return new Object[] { chain, handler };
+    }
+
+    /** {@code BlockHandler.createBlock} with a mempool of {@code mempool} transactions, from the template and from the assembler */
+    private static void createBlock(int mempool) throws Exception {
+        final Block genesis = genesis(cheapWorkload);
+        ArrayList<Workload.Coin> coins = new ArrayList<Workload.Coin>();
+        final Block funding = fanOut(cheapWorkload, genesis, mempool, coins);
+        final Transaction[] pending = cheapWorkload.batch(coins, mempool, 4, 0.05);
+        final PublicKey miner = minerKeys.generateKeyPair().getPublic();
+
+        for (final boolean template : new boolean[] { true, false }) {
+            bench.run(template ? "BlockHandler.createBlock.template" : "BlockHandler.createBlock.assembler", Bench.params("mempool", mempool), new Bench.Case() {
+                BlockHandler handler;
+
+                public void setup() {
+                    handler = (BlockHandler) chainWithMempool(genesis, funding, pending, template)[1];
+                }
+
+                public Object run() {
+                    Block block = handler.createBlock(miner);
+                    if (block == null) throw new IllegalStateException("block rejected");
+                    return block;
+                }
+            });
+        }
+    }
+
+    /**
+     * How long the block template takes to follow a mempool of {@code mempool} transactions: per
+     * new transaction, per new block confirming a hundredth of the mempool, and rebuilt from
+     * scratch, which is what every {@code createBlock} cost before the template
+     */
+    private static void template(final int mempool) throws Exception {
+        final int blocks = 20;
+        final int arrivals = 1000;
+        final Block genesis = genesis(cheapWorkload);
+        ArrayList<Workload.Coin> coins = new ArrayList<Workload.Coin>();
+        final Block funding = fanOut(cheapWorkload, genesis, mempool + arrivals, coins);
+        final Transaction[] pending = cheapWorkload.batch(coins.subList(0, mempool), mempool, 1, 0);
+        final Transaction[] late = cheapWorkload.batch(coins.subList(mempool, mempool + arrivals), arrivals, 1, 0);
+
+        BlockChain chain = new BlockChain(genesis);
+        chain.addBlock(funding);
+        final BlockTemplate template = new BlockTemplate(chain);
+        for (Transaction tx : pending)
+            template.addTransaction(tx);
+
+        // blocks confirming successive slices of the mempool, one per iteration
+        final ArrayList<Block> confirming = new ArrayList<Block>();
+        int slice = mempool / 100;
+        byte[] parent = funding.getHash();
+        for (int b = 0; b < blocks; b++) {
+            Block block = block(parent, Arrays.copyOfRange(pending, b * slice, (b + 1) * slice));
+            confirming.add(block);
+            parent = block.getHash();
+        }
+
+        bench.run("BlockTemplate.addTransaction", Bench.params("mempool", mempool), new Bench.Case() {
+            int next;
+
+            public Object run() {
+                int end = Math.min(late.length, next + late.length / 10);
+                for (int i = next; i < end; i++)
+                    template.addTransaction(late[i]);
+                int added = end - next;
+                next = end;
+                return added;
+            }
+
+            public long operations() {
+                return late.length / 10;
+            }
+        });
+        bench.run("BlockTemplate.addBlock", Bench.params("mempool", mempool, "confirmed", slice), new Bench.Case() {
+            int next;
+
+            public Object run() {
+                if (!template.addBlock(confirming.get(next++))) throw new IllegalStateException("block rejected");
+                return template.getTransactions();
+            }
+        });
+        final BlockChain tip = chain;
+        bench.run("BlockTemplate.rebuild", Bench.params("mempool", mempool), new Bench.Case() {
+            public Object run() {
+                return new BlockTemplate(tip).getTransactions();
+            }
+        });
+    }
+
+    /** {@code BatchHasher.finalizeAll} of {@code size} transactions on {@code threads} threads */
+    private static void hashing(final int size, int threads) throws Exception {
+        final Transaction[] txs = unsigned(size);
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        bench.run("BatchHasher.finalizeAll", Bench.params("batchSize", size, "threads", threads), new Bench.Case() {
+            public Object run() {
+                BatchHasher.finalizeAll(txs, pool);
+                return txs[size - 1].getHash();
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        pool.shutdown();
+    }
+
+    /** Transactions shaped like real ones, with random hashes and signatures, which nothing checks */
+    private static Transaction[] unsigned(int size) {
+        Transaction[] txs = new Transaction[size];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < size; i++) {
+            Transaction tx = new Transaction();
+            for (int in = 0; in < 2; in++) {
+                workload.random().nextBytes(hash);
+                tx.addInput(hash, in);
+                byte[] signature = new byte[128];
+                workload.random().nextBytes(signature);
+                tx.addSignature(signature, in);
+            }
+            tx.addOutput(1, workload.address());
+            tx.addOutput(2, workload.address());
+            tx.finalize();
+            txs[i] = tx;
+        }
+        return txs;
+    }
+
+    /**
+     * Time and bytes allocated per signed input to serialize what its signature covers, the way
+     * {@code TxHandler} does, against the {@code ArrayList<Byte>} serializer transactions had
+     */
+    private static void serialization(final int size) throws Exception {
+        final Transaction[] txs = unsigned(size);
+        final int inputs = 2 * size;
+        Bench.Case streaming = new Bench.Case() {
+            public Object run() {
+                long bytes = 0;
+                for (Transaction tx : txs) {
+                    byte[] rawOutputs = tx.getRawOutputs();
+                    for (int i = 0; i < tx.numInputs(); i++)
+                        bytes += tx.getRawDataToSign(i, rawOutputs).length;
+                }
+                return bytes;
+            }
+
+            public long operations() {
+                return inputs;
+            }
+        };
+        Bench.Case boxed = new Bench.Case() {
+            public Object run() {
+                long bytes = 0;
+                for (Transaction tx : txs) {
+                    for (int i = 0; i < tx.numInputs(); i++)
+                        bytes += boxedRawDataToSign(tx, i).length;
+                }
+                return bytes;
+            }
+
+            public long operations() {
+                return inputs;
+            }
+        };
+        bench.run("Transaction.getRawDataToSign", Bench.params("batchSize", size), streaming);
+        bench.run("Transaction.getRawDataToSign.ArrayList", Bench.params("batchSize", size), boxed);
+
+        if (!bench.selected("Transaction.getRawDataToSign.allocated")) return;
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        secondary.put("ArrayList<Byte>", new double[] { allocated(boxed) });
+        bench.record("Transaction.getRawDataToSign.allocated", Bench.params("batchSize", size), new double[] { allocated(streaming) },
+                "B/input", secondary, "B/input");
+    }
+
+    /** {@code getRawDataToSign} as it was, boxing every byte into a list */
+    private static byte[] boxedRawDataToSign(Transaction tx, int index) {
+        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        Transaction.Input in = tx.getInput(index);
+        byte[] prevTxHash = in.prevTxHash;
+        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        b.putInt(in.outputIndex);
+        byte[] outputIndex = b.array();
+        if (prevTxHash != null)
+            for (int i = 0; i < prevTxHash.length; i++)
+                sigData.add(prevTxHash[i]);
+        for (int i = 0; i < outputIndex.length; i++)
+            sigData.add(outputIndex[i]);
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
+            bo.putDouble(op.value);
+            byte[] value = bo.array();
+            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
+            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            for (int i = 0; i < value.length; i++)
+                sigData.add(value[i]);
+            for (int i = 0; i < addressExponent.length; i++)
+                sigData.add(addressExponent[i]);
+            for (int i = 0; i < addressModulus.length; i++)
+                sigData.add(addressModulus[i]);
+        }
+        byte[] sigD = new byte[sigData.size()];
+        int i = 0;
+        for (Byte sb : sigData)
+            sigD[i++] = sb;
+        return sigD;
+    }
+
+    /** @return the bytes the calling thread allocates per operation of {@code c}, after a warmup call */
+    private static double allocated(Bench.Case c) throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        c.setup();
+        Bench.sink = c.run();
+        c.setup();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        Bench.sink = c.run();
+        return (double) (threads.getCurrentThreadAllocatedBytes() - before) / c.operations();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Heap per transaction and sweep time of {@code size} transactions as an
+     * {@code ArrayList<Transaction>} and as a {@code TransactionBatch}
+     */
+    private static void batchMemory(final int size) throws Exception {
+        long base = usedHeap();
+        final ArrayList<Transaction> objects = new ArrayList<Transaction>(Arrays.asList(unsigned(size)));
+        long listBytes = usedHeap() - base;
+        final TransactionBatch columns = new TransactionBatch(objects);
+        // the batch shares its hash and signature arrays with the objects, so this leaves them out
+        long batchBytes = usedHeap() - base - listBytes;
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        secondary.put("ArrayList<Transaction>", new double[] { (double) listBytes / size });
+        bench.record("TransactionBatch.heap", Bench.params("batchSize", size), new double[] { (double) batchBytes / size },
+                "B/tx", secondary, "B/tx");
+
+        bench.run("sweep.ArrayList", Bench.params("batchSize", size), new Bench.Case() {
+            public Object run() {
+                double value = 0;
+                int inputs = 0;
+                for (Transaction tx : objects) {
+                    inputs += tx.numInputs();
+                    for (Transaction.Output out : tx.getOutputs())
+                        value += out.value;
+                }
+                return value + inputs;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+        bench.run("sweep.TransactionBatch", Bench.params("batchSize", size), new Bench.Case() {
+            public Object run() {
+                double value = 0;
+                int inputs = 0;
+                for (int tx = 0; tx < columns.size(); tx++) {
+                    inputs += columns.numInputs(tx);
+                    for (int o = 0; o < columns.numOutputs(tx); o++)
+                        value += columns.getValue(tx, o);
+                }
+                return value + inputs;
+            }
+
+            public long operations() {
+                return size;
+            }
+        });
+    }
+
+    /** Writing and reading a snapshot of {@code size} UTXOs, reported per million UTXOs */
+    private static void snapshotLoad(final int size) throws Exception {
+        UTXOPool pool = new UTXOPool();
+        workload.fund(pool, size, 1);
+        Block genesis = genesis(workload);
+        final File file = File.createTempFile("snapshot", ".bin");
+        file.deleteOnExit();
+        new ChainSnapshot(pool, Arrays.asList(genesis)).write(file);
+
+        int runs = bench.quick() ? 2 : 5;
+        double[] load = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            ChainSnapshot snapshot = ChainSnapshot.read(file, new PersistentUTXOMap());
+            load[i] = snapshot.getLoadNanos() / 1e9 * 1e6 / size;
+            Bench.sink = snapshot;
+        }
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        secondary.put("fileBytesPerUTXO", new double[] { (double) file.length() / size });
+        bench.record("ChainSnapshot.read", Bench.params("utxos", size), load, "s/1M UTXOs", secondary, "B");
+    }
+
+    /**
+     * Latency of the readers of a {@code ConcurrentBlockChain} while a writer adds blocks and
+     * transactions for {@code millis} milliseconds. Each read takes one {@code Tip} and checks that
+     * its block, UTXO pool and transaction pool agree, failing the benchmark if any did not.
+     */
+    private static void concurrentReads(int readers, long millis) throws Exception {
+        int perBlock = 20;
+        int numBlocks = 200;
+        Block genesis = genesis(cheapWorkload);
+        ArrayList<Workload.Coin> coins = new ArrayList<Workload.Coin>();
+        Block funding = fanOut(cheapWorkload, genesis, perBlock * numBlocks, coins);
+        final ConcurrentBlockChain chain = new ConcurrentBlockChain(genesis);
+        chain.addBlock(funding);
+        final ArrayList<Transaction[]> batches = new ArrayList<Transaction[]>();
+        for (int b = 0; b < numBlocks; b++)
+            batches.add(cheapWorkload.batch(coins.subList(b * perBlock, (b + 1) * perBlock), perBlock, 1, 0));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong torn = new AtomicLong();
+        final Bench.Histogram[] histograms = new Bench.Histogram[readers];
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final Bench.Histogram histogram = new Bench.Histogram();
+            histograms[r] = histogram;
+            threads[r] = new Thread(new Runnable() {
+                public void run() {
+                    long seen = 0;
+                    while (!done.get()) {
+                        long start = System.nanoTime();
+                        ConcurrentBlockChain.Tip tip = chain.getTip();
+                        Block block = tip.getBlock();
+                        UTXOPool utxoPool = tip.getUTXOPool();
+                        TransactionPool txPool = tip.getTransactionPool();
+                        // the pool holds the block's coinbase, and the mempool none of the transactions it confirmed
+                        boolean consistent = utxoPool.contains(block.getCoinbase().getHash(), 0);
+                        for (Transaction tx : block.getTransactions()) {
+                            if (txPool.getTransaction(tx.getHash()) != null)
+                                consistent = false;
+                        }
+                        histogram.record(System.nanoTime() - start);
+                        if (!consistent) torn.incrementAndGet();
+                        seen += utxoPool.size() + txPool.size();
+                    }
+                    Bench.sink = seen;
+                }
+            }, "reader-" + r);
+            threads[r].start();
+        }
+
+        // the writer: transactions to the pool, then the block confirming them
+        long end = System.currentTimeMillis() + millis;
+        int written = 0;
+        byte[] parent = funding.getHash();
+        while (System.currentTimeMillis() < end && written < numBlocks) {
+            Transaction[] txs = batches.get(written++);
+            chain.addTransactions(Arrays.asList(txs));
+            Block block = block(parent, txs);
+            chain.addBlock(block);
+            parent = block.getHash();
+        }
+        while (System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        done.set(true);
+        for (Thread t : threads)
+            t.join();
+        if (torn.get() > 0) throw new IllegalStateException(torn.get() + " reads saw parts of different tips");
+
+        Bench.Histogram all = new Bench.Histogram();
+        for (Bench.Histogram h : histograms)
+            all.add(h);
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        for (double p : new double[] { 50, 90, 99, 99.9, 99.99 })
+            secondary.put("p" + (p == (int) p ? String.valueOf((int) p) : String.valueOf(p)), new double[] { all.percentile(p) / 1e3 });
+        secondary.put("max", new double[] { all.percentile(100) / 1e3 });
+        bench.record("ConcurrentBlockChain.read", Bench.params("readers", readers, "blocksWritten", written),
+                new double[] { all.count() * 1e3 / millis }, "reads/s", secondary, "us");
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small benchmark harness, for trees without a build to run JMH from. Each benchmark runs its
+ * warmup iterations, then its measurement iterations, timing one call of {@code Case.run} per
+ * iteration after an untimed call of {@code Case.setup}. The score is the mean time per
+ * operation across measurement iterations, with a 99.9% confidence interval.
+ *
+ * <p>
+ * Results are written in the JSON layout of JMH's {@code -rf json}, so the usual JMH tooling and
+ * regression trackers can read them: one object per benchmark and parameter combination, with a
+ * {@code primaryMetric} and optional {@code secondaryMetrics}. Measurements that are not a timed
+ * loop, such as heap per transaction or a latency histogram, are recorded as single-shot results
+ * through {@code record}.
+ *
+ * <p>
+ * Command line: {@code [--out FILE] [--filter SUBSTRING] [--warmup N] [--iterations N] [--quick]}.
+ * {@code --quick} makes workloads small enough to check the suite runs; its numbers mean little.
+ *
+ * <p>
+ * This is a hand-rolled harness, not JMH, and its numbers are not JMH-grade. Every benchmark runs
+ * in the one JVM, without forks, so code compiled for an earlier benchmark can slow a later one;
+ * and results are only stored in {@code sink} rather than consumed by a blackhole. Compare its
+ * results with earlier runs of the same suite on the same machine, not with JMH figures.
+ */
+public class Bench {
+
+    /** One benchmark, run once per iteration */
+    public static abstract class Case {
+        /** Prepares an iteration, untimed */
+        public void setup() throws Exception {
+        }
+
+        /** The timed work; the result is kept so that the work cannot be optimized away */
+        public abstract Object run() throws Exception;
+
+        /** @return the number of operations one call of {@code run} performs */
+        public long operations() {
+            return 1;
+        }
+    }
+
+    /**
+     * A latency histogram with buckets growing by an eighth at a time, so that percentiles are
+     * within 12.5% of the true value whatever the range. Not thread-safe: give each thread its
+     * own and {@code add} them up.
+     */
+    public static class Histogram {
+        private long[] counts = new long[64 * 8];
+        private long total;
+        private long max;
+
+        public void record(long nanos) {
+            nanos = Math.max(1, nanos);
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int fraction = exponent < 3 ? 0 : (int) ((nanos >>> (exponent - 3)) & 7);
+            counts[exponent * 8 + fraction]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        public void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        public long count() {
+            return total;
+        }
+
+        /** @return the upper bound of the bucket holding the {@code p}th percentile, in nanoseconds */
+        public double percentile(double p) {
+            if (p >= 100) return max;
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    int exponent = i / 8;
+                    double low = exponent < 3 ? (1L << exponent) : (double) (8 + i % 8) * (1L << (exponent - 3));
+                    double width = exponent < 3 ? (1L << exponent) : (1L << (exponent - 3));
+                    return Math.min(max, low + width - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    /** results kept out of reach of dead code elimination */
+    public static volatile Object sink;
+
+    private String suite;
+    private File out;
+    private String filter;
+    private int warmup = 3;
+    private int iterations = 5;
+    private boolean quick;
+    private ArrayList<String> results = new ArrayList<String>();
+
+    public Bench(String suite, String[] args) {
+        this.suite = suite;
+        this.out = new File(suite + ".json");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--out")) {
+                out = new File(args[++i]);
+            } else if (args[i].equals("--filter")) {
+                filter = args[++i];
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--quick")) {
+                quick = true;
+                warmup = 1;
+                iterations = 2;
+            } else {
+                throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+    }
+
+    /** @return true if small workloads were asked for */
+    public boolean quick() {
+        return quick;
+    }
+
+    /** @return true if {@code name} passes the filter */
+    public boolean selected(String name) {
+        return filter == null || (suite + "." + name).contains(filter);
+    }
+
+    /** @return parameters from alternating names and values */
+    public static LinkedHashMap<String, String> params(Object... namesAndValues) {
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            params.put(String.valueOf(namesAndValues[i]), String.valueOf(namesAndValues[i + 1]));
+        return params;
+    }
+
+    /** Runs {@code c} and records its mean time per operation in microseconds, and its throughput */
+    public void run(String name, LinkedHashMap<String, String> params, Case c) throws Exception {
+        if (!selected(name)) return;
+        System.err.println(suite + "." + name + " " + params);
+        for (int i = 0; i < warmup; i++) {
+            c.setup();
+            sink = c.run();
+        }
+        double[] samples = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            c.setup();
+            long start = System.nanoTime();
+            sink = c.run();
+            long elapsed = System.nanoTime() - start;
+            samples[i] = elapsed / 1e3 / c.operations();
+        }
+        double mean = mean(samples);
+        LinkedHashMap<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+        secondary.put("throughput", new double[] { 1e6 / mean });
+        results.add(json(name, "avgt", params, samples, "us/op", secondary, "ops/s"));
+        System.err.printf("  %.3f us/op, %.0f ops/s%n", mean, 1e6 / mean);
+    }
+
+    /**
+     * Records a measurement made by the caller: {@code samples} of the primary metric in
+     * {@code unit}, and secondary metrics by name, all in {@code secondaryUnit}
+     */
+    public void record(String name, LinkedHashMap<String, String> params, double[] samples, String unit,
+            LinkedHashMap<String, double[]> secondary, String secondaryUnit) {
+        if (!selected(name)) return;
+        results.add(json(name, "ss", params, samples, unit, secondary, secondaryUnit));
+        System.err.printf("%s.%s %s%n  %.3f %s%n", suite, name, params, mean(samples), unit);
+    }
+
+    /** @return the {@code p}th percentile of the sorted {@code sorted}, 0 <= p <= 100 */
+    public static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double mean(double[] samples) {
+        double sum = 0;
+        for (double s : samples)
+            sum += s;
+        return sum / samples.length;
+    }
+
+    /** @return the half width of the 99.9% confidence interval of the mean, by the normal approximation */
+    private static double error(double[] samples) {
+        if (samples.length < 2) return Double.NaN;
+        double mean = mean(samples);
+        double squares = 0;
+        for (double s : samples)
+            squares += (s - mean) * (s - mean);
+        return 3.29 * Math.sqrt(squares / (samples.length - 1)) / Math.sqrt(samples.length);
+    }
+
+    private String json(String name, String mode, LinkedHashMap<String, String> params, double[] samples, String unit,
+            LinkedHashMap<String, double[]> secondary, String secondaryUnit) {
+        StringBuilder b = new StringBuilder();
+        b.append("  {\n");
+        b.append("    \"benchmark\": ").append(quote(suite + "." + name)).append(",\n");
+        b.append("    \"mode\": ").append(quote(mode)).append(",\n");
+        b.append("    \"threads\": 1,\n    \"forks\": 1,\n");
+        b.append("    \"warmupIterations\": ").append(mode.equals("ss") ? 0 : warmup).append(",\n");
+        b.append("    \"measurementIterations\": ").append(samples.length).append(",\n");
+        b.append("    \"params\": {");
+        String sep = "";
+        for (Map.Entry<String, String> p : params.entrySet()) {
+            b.append(sep).append(quote(p.getKey())).append(": ").append(quote(p.getValue()));
+            sep = ", ";
+        }
+        b.append("},\n");
+        b.append("    \"primaryMetric\": ").append(metric(samples, unit, "    ")).append(",\n");
+        b.append("    \"secondaryMetrics\": {");
+        sep = "\n";
+        if (secondary != null) {
+            for (Map.Entry<String, double[]> m : secondary.entrySet()) {
+                b.append(sep).append("      ").append(quote(m.getKey())).append(": ").append(metric(m.getValue(), secondaryUnit, "      "));
+                sep = ",\n";
+            }
+        }
+        b.append(sep.equals("\n") ? "}\n" : "\n    }\n");
+        b.append("  }");
+        return b.toString();
+    }
+
+    private static String metric(double[] samples, String unit, String indent) {
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = mean(samples);
+        double error = error(samples);
+        StringBuilder b = new StringBuilder();
+        b.append("{\n");
+        b.append(indent).append("  \"score\": ").append(number(mean)).append(",\n");
+        b.append(indent).append("  \"scoreError\": ").append(number(error)).append(",\n");
+        b.append(indent).append("  \"scoreConfidence\": [").append(number(mean - error)).append(", ").append(number(mean + error)).append("],\n");
+        b.append(indent).append("  \"scorePercentiles\": {");
+        String sep = "";
+        for (double p : new double[] { 0, 50, 90, 99, 99.9, 100 }) {
+            b.append(sep).append(quote(String.valueOf(p))).append(": ").append(number(percentile(sorted, p)));
+            sep = ", ";
+        }
+        b.append("},\n");
+        b.append(indent).append("  \"scoreUnit\": ").append(quote(unit)).append(",\n");
+        b.append(indent).append("  \"rawData\": [[");
+        sep = "";
+        for (double s : samples) {
+            b.append(sep).append(number(s));
+            sep = ", ";
+        }
+        b.append("]]\n").append(indent).append("}");
+        return b.toString();
+    }
+
+    private static String number(double d) {
+        return Double.isNaN(d) || Double.isInfinite(d) ? "\"NaN\"" : String.valueOf(d);
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Writes the results to the output file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void write() throws IOException {
+        File dir = out.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        Writer w = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8);
+        try {
+            w.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                w.write(results.get(i));
+                w.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            w.write("]\n");
+        } finally {
+            w.close();
+        }
+        System.err.println("wrote " + results.size() + " results to " + out);
+    }
+}
@@ -0,0 +1,159 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates signed transactions for the benchmarks, from a fixed set of keys and a seed so that
+ * runs are repeatable. It only uses the part of the {@code Transaction} API every assignment
+ * shares, so it compiles against any of them.
+ *
+ * <p>
+ * A batch is shaped by three parameters: its size, its dependency depth, which is the length of
+ * the chains of transactions each spending the previous one, and its double-spend ratio, the
+ * fraction of its transactions that spend an output another transaction of the batch spends too.
+ */
+public class Workload {
+
+    /** An output that can be spent */
+    public static class Coin {
+        public final Transaction tx;
+        public final int index;
+
+        public Coin(Transaction tx, int index) {
+            this.tx = tx;
+            this.index = index;
+        }
+
+        public Transaction.Output output() {
+            return tx.getOutput(index);
+        }
+    }
+
+    private KeyPair[] keys;
+    private HashMap<PublicKey, Integer> owners = new HashMap<PublicKey, Integer>();
+    private Random random;
+    private int funded;
+
+    /** Creates {@code numKeys} RSA keys of {@code keyBits} bits, all derived from {@code seed} */
+    public Workload(int numKeys, int keyBits, long seed) throws GeneralSecurityException {
+        random = new Random(seed);
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(seed);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keyBits, keyRandom);
+        keys = new KeyPair[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = generator.generateKeyPair();
+            owners.put(keys[i].getPublic(), i);
+        }
+    }
+
+    public Random random() {
+        return random;
+    }
+
+    /** @return the address of a random key */
+    public PublicKey address() {
+        return keys[random.nextInt(keys.length)].getPublic();
+    }
+
+    /**
+     * Adds {@code n} outputs of {@code value} to {@code pool}, as outputs of a transaction that
+     * spends nothing
+     *
+     * @return those outputs
+     */
+    public ArrayList<Coin> fund(UTXOPool pool, int n, double value) {
+        Transaction tx = new Transaction();
+        // an input no one can spend, so that funding transactions differ in hash
+        tx.addInput(new byte[32], funded++);
+        for (int i = 0; i < n; i++)
+            tx.addOutput(value, address());
+        tx.finalize();
+        for (int i = 0; i < n; i++)
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        return coins(tx);
+    }
+
+    /** @return the outputs of {@code tx} */
+    public static ArrayList<Coin> coins(Transaction tx) {
+        ArrayList<Coin> coins = new ArrayList<Coin>();
+        for (int i = 0; i < tx.numOutputs(); i++)
+            coins.add(new Coin(tx, i));
+        return coins;
+    }
+
+    /**
+     * @return a transaction spending {@code coins}, signed by their owners, paying
+     *         {@code numOutputs} equal outputs to random keys and {@code fee} to the miner
+     */
+    public Transaction spend(List<Coin> coins, int numOutputs, double fee) throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        double value = -fee;
+        for (Coin c : coins) {
+            tx.addInput(c.tx.getHash(), c.index);
+            value += c.output().value;
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Math.max(0, value / numOutputs), address());
+        for (int i = 0; i < coins.size(); i++) {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(keys[owners.get(coins.get(i).output().address)].getPrivate());
+            signature.update(tx.getRawDataToSign(i));
+            tx.addSignature(signature.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** Same as {@code spend} for the single output {@code coin} */
+    public Transaction spend(Coin coin, int numOutputs, double fee) throws GeneralSecurityException {
+        return spend(Collections.singletonList(coin), numOutputs, fee);
+    }
+
+    /**
+     * Builds a batch of {@code size} transactions in random order, as chains of {@code depth}
+     * transactions, each chain starting from one of {@code sources}. A fraction
+     * {@code doubleSpendRatio} of the batch are rivals of other transactions, spending the same
+     * output with a different fee.
+     *
+     * @throws IllegalArgumentException if there are not enough sources
+     */
+    public Transaction[] batch(List<Coin> sources, int size, int depth, double doubleSpendRatio) throws GeneralSecurityException {
+        int rivals = (int) Math.round(size * doubleSpendRatio);
+        int regular = size - rivals;
+        int chains = (regular + depth - 1) / depth;
+        if (chains > sources.size()) throw new IllegalArgumentException("need " + chains + " sources, have " + sources.size());
+
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(size);
+        ArrayList<Coin> spent = new ArrayList<Coin>(regular);
+        for (int chain = 0; chain < chains; chain++) {
+            Coin coin = sources.get(chain);
+            for (int i = 0; i < depth && txs.size() < regular; i++) {
+                Transaction tx = spend(coin, 1, fee(coin));
+                txs.add(tx);
+                spent.add(coin);
+                coin = new Coin(tx, 0);
+            }
+        }
+        for (int i = 0; i < rivals; i++) {
+            Coin coin = spent.get(random.nextInt(spent.size()));
+            txs.add(spend(coin, 1, fee(coin)));
+        }
+        Collections.shuffle(txs, random);
+        return txs.toArray(new Transaction[0]);
+    }
+
+    /** @return a random fee of up to a hundredth of the value of {@code coin} */
+    private double fee(Coin coin) {
+        return coin.output().value * random.nextDouble() / 100;
+    }
+}
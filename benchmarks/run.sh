@@ -0,0 +1,20 @@
+#!/bin/sh
+# Compiles and runs the benchmark suites, writing JMH-style JSON to benchmarks/results.
+# Usage: benchmarks/run.sh [assignment1|assignment3] [--quick] [--filter SUBSTRING] ...
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+suites="assignment1 assignment3"
+case "$1" in
+    assignment*) suites=$1; shift ;;
+esac
+mkdir -p "$root/benchmarks/results"
+for suite in $suites; do
+    classes=$(mktemp -d)
+    javac -d "$classes" "$root/$suite"/*.java "$root"/benchmarks/common/*.java "$root/benchmarks/$suite"/*.java
+    case $suite in
+        assignment1) main=HandlerBenchmarks ;;
+        assignment3) main=LedgerBenchmarks ;;
+    esac
+    java -Xmx4g -cp "$classes" $main --out "$root/benchmarks/results/$suite.json" "$@"
+    rm -rf "$classes"
+done